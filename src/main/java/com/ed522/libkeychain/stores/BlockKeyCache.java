@@ -0,0 +1,94 @@
+package com.ed522.libkeychain.stores;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.security.auth.Destroyable;
+
+/**
+ * Bounded cache of derived block keys, keyed by chunk salt.
+ *
+ * Eviction is least-recently-used: once more than {@code capacity} keys are held,
+ * the key that was looked up longest ago is dropped. Every key that leaves the cache
+ * (eviction, {@link #evict(byte[])}, {@link #clear()} or {@link #destroy()}) is zeroed.
+ */
+public class BlockKeyCache implements Destroyable {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private final int capacity;
+	private final LinkedHashMap<ByteBuffer, byte[]> keys;
+	private boolean destroyed = false;
+
+	public BlockKeyCache() {
+		this(DEFAULT_CAPACITY);
+	}
+	public BlockKeyCache(int capacity) {
+		if (capacity < 0) throw new IllegalArgumentException("Capacity must not be negative");
+		this.capacity = capacity;
+		// access order, so iteration order is LRU first
+		this.keys = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+				if (size() <= BlockKeyCache.this.capacity) return false;
+				Arrays.fill(eldest.getValue(), (byte) 0);
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Copies the cached key for {@code salt} into {@code dst}.
+	 * @return true if the key was cached, false otherwise ({@code dst} is untouched)
+	 */
+	public synchronized boolean get(byte[] salt, byte[] dst) {
+		if (destroyed) return false;
+		byte[] key = keys.get(ByteBuffer.wrap(salt));
+		if (key == null) return false;
+		System.arraycopy(key, 0, dst, 0, key.length);
+		return true;
+	}
+
+	/**
+	 * Caches a copy of {@code key} for {@code salt}. Neither array is retained.
+	 */
+	public synchronized void put(byte[] salt, byte[] key) {
+		if (destroyed || capacity == 0) return;
+		byte[] old = keys.put(ByteBuffer.wrap(salt.clone()), key.clone());
+		if (old != null) Arrays.fill(old, (byte) 0);
+	}
+
+	public synchronized void evict(byte[] salt) {
+		byte[] old = keys.remove(ByteBuffer.wrap(salt));
+		if (old != null) Arrays.fill(old, (byte) 0);
+	}
+
+	public synchronized void clear() {
+		Iterator<byte[]> it = keys.values().iterator();
+		while (it.hasNext()) {
+			Arrays.fill(it.next(), (byte) 0);
+			it.remove();
+		}
+	}
+
+	public synchronized int size() {
+		return keys.size();
+	}
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public synchronized void destroy() {
+		clear();
+		destroyed = true;
+	}
+	@Override
+	public synchronized boolean isDestroyed() {
+		return destroyed;
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.ed522.libkeychain.stores;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Publishes the changes made to a store to its subscribers, without the store waiting on them.
+ *
+ * Stores hand each change over as they make it, which only numbers it and queues it. Delivery
+ * happens on an executor: everything queued since the last delivery goes out as one list, so a
+ * burst of changes reaches subscribers as a few batches. A removal directly followed by an
+ * addition with the same key is delivered as one {@link StoreEvent.Kind#REPLACE} event.
+ *
+ * Each subscriber buffers a limited number of batches. While one is full, delivery waits for it,
+ * and changes made meanwhile are collected into the next batch. Changes made while nobody is
+ * subscribed still take a sequence number, but are not kept.
+ */
+public final class ChangeFeed<T> implements Flow.Publisher<List<StoreEvent<T>>> {
+
+	private final SubmissionPublisher<List<StoreEvent<T>>> publisher;
+	private final Executor executor;
+	private final Function<? super T, ?> key;
+	// all guarded by this
+	private List<StoreEvent<T>> pending = new ArrayList<>();
+	private long sequence = 0;
+	private boolean dispatching = false;
+	private boolean closed = false;
+
+	/**
+	 * Delivers on the common pool.
+	 * @param key What identifies an entry, for telling a replacement from other changes
+	 */
+	public ChangeFeed(Function<? super T, ?> key) {
+		this(key, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+	}
+	/**
+	 * @param key What identifies an entry, for telling a replacement from other changes
+	 * @param bufferSize How many batches each subscriber may fall behind by
+	 */
+	public ChangeFeed(Function<? super T, ?> key, Executor executor, int bufferSize) {
+		this.key = key;
+		this.executor = executor;
+		this.publisher = new SubmissionPublisher<>(executor, bufferSize);
+	}
+
+	public synchronized void added(T entry) {
+		queue(StoreEvent.added(++sequence, entry));
+	}
+	public synchronized void removed(T entry) {
+		queue(StoreEvent.removed(++sequence, entry));
+	}
+
+	private void queue(StoreEvent<T> event) {
+		if (closed || !publisher.hasSubscribers()) return;
+		pending.add(event);
+		if (!dispatching) {
+			dispatching = true;
+			executor.execute(this::dispatch);
+		}
+	}
+
+	private void dispatch() {
+		while (true) {
+			List<StoreEvent<T>> batch;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					dispatching = false;
+					if (closed) publisher.close();
+					return;
+				}
+				batch = pending;
+				pending = new ArrayList<>();
+			}
+			// waits while a subscriber's buffer is full
+			publisher.submit(coalesce(batch));
+		}
+	}
+
+	private List<StoreEvent<T>> coalesce(List<StoreEvent<T>> batch) {
+		List<StoreEvent<T>> out = new ArrayList<>(batch.size());
+		for (StoreEvent<T> event : batch) {
+			StoreEvent<T> last = out.isEmpty() ? null : out.get(out.size() - 1);
+			if (event.kind() == StoreEvent.Kind.ADD && last != null && last.kind() == StoreEvent.Kind.REMOVE
+				&& Objects.equals(key.apply(event.entry()), key.apply(last.previous()))) {
+				out.set(out.size() - 1, new StoreEvent<>(StoreEvent.Kind.REPLACE, event.sequence(), event.entry(), last.previous()));
+			} else {
+				out.add(event);
+			}
+		}
+		return List.copyOf(out);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super List<StoreEvent<T>>> subscriber) {
+		publisher.subscribe(subscriber);
+	}
+	/**
+	 * Subscribes {@code consumer} to every batch from now on.
+	 * @return A future completed once the feed is closed, or with what {@code consumer} threw
+	 */
+	public CompletableFuture<Void> consume(Consumer<? super List<StoreEvent<T>>> consumer) {
+		return publisher.consume(consumer);
+	}
+
+	/**
+	 * @return The sequence number of the latest change
+	 */
+	public synchronized long sequence() {
+		return sequence;
+	}
+
+	/**
+	 * Delivers what is still queued, then completes every subscriber.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			// the running delivery closes the publisher once it's done
+			if (dispatching) return;
+		}
+		publisher.close();
+	}
+
+}
@@ -0,0 +1,95 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads, decrypts and parses the chunks of a store file one after the other, so only one chunk
+ * is in memory at a time. Chunks the parser returns null for, like tombstones, are skipped.
+ *
+ * Being an {@link Iterator}, failures are thrown as {@link IllegalStateException}s wrapping
+ * the {@link IOException} or {@link GeneralSecurityException}.
+ */
+public class ChunkCursor<T> implements Iterator<T>, Closeable {
+
+	private final FileChannel channel;
+	private final ChunkParser parser;
+	private final ParallelChunkLoader.EntryParser<T> entryParser;
+	private final long end;
+	private long remaining;
+	private long position;
+	// reused for every chunk, grown when needed
+	private ByteBuffer chunk = ByteBuffer.allocate(1024);
+	private T next = null;
+
+	/**
+	 * @param start Where the first chunk starts
+	 * @param count How many chunks there are, or -1 for every chunk up to the end of the file
+	 */
+	public ChunkCursor(FileChannel channel, ChunkParser parser, long start, long count, ParallelChunkLoader.EntryParser<T> entryParser) throws IOException {
+		this.channel = channel;
+		this.parser = parser;
+		this.entryParser = entryParser;
+		this.position = start;
+		this.remaining = count < 0 ? Long.MAX_VALUE : count;
+		this.end = channel.size();
+	}
+
+	@Override
+	public boolean hasNext() {
+		try {
+			while (next == null && remaining > 0 && position < end) {
+				next = entryParser.parse(nextChunk());
+				remaining--;
+			}
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		return next != null;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		T out = next;
+		next = null;
+		return out;
+	}
+
+	private byte[] nextChunk() throws IOException, GeneralSecurityException {
+
+		chunk.clear().limit(ChunkParser.HEADER_LENGTH);
+		ChunkTable.readFully(channel, chunk, position);
+		int size = ChunkParser.HEADER_LENGTH + chunk.getInt(ChunkParser.HEADER_LENGTH - Integer.BYTES);
+		if (size < ChunkParser.chunkSize(0) || position + size > end) throw new StreamCorruptedException("Bad chunk length");
+
+		if (chunk.capacity() < size) {
+			chunk = ByteBuffer.allocate(Math.max(size, chunk.capacity() * 2)).put(chunk.flip());
+		}
+		chunk.limit(size);
+		ChunkTable.readFully(channel, chunk, position + ChunkParser.HEADER_LENGTH);
+		chunk.flip();
+		position += size;
+
+		byte[] out = new byte[ChunkParser.dataLength(chunk)];
+		parser.decryptChunk(chunk, ByteBuffer.wrap(out));
+		return out;
+
+	}
+
+	/**
+	 * Closes the channel.
+	 */
+	@Override
+	public void close() throws IOException {
+		next = null;
+		channel.close();
+	}
+
+}
@@ -1,7 +1,6 @@
 package com.ed522.libkeychain.stores;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -9,51 +8,37 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.security.SecureRandom;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.Destroyable;
 
-import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
 import org.bouncycastle.crypto.params.HKDFParameters;
 
 import com.ed522.libkeychain.util.Constants;
 
-public class ChunkParser {
-	
+public class ChunkParser implements Destroyable {
+
 	/*
 	 * Structure:
 	 * 32B SALT       for block key derivation
-	 * 16B IV         MUST NOT be reused
+	 * 12B IV         MUST NOT be reused
 	 * 4B LEN         length of data + tag
 	 * <LEN> DATA   \ these are both
 	 * 16B TAG      / parsed together
 	 */
-	
-    private static final int SALT_LENGTH = 32;
-	private static final int EXTRA_DATA = 64;
-	private Key masterKey;
-
-	private static final void copyArray(byte[] src, byte[] dst, int srcOff, int dstOff, int len) {
-
-		if (srcOff == -1) srcOff = src.length; // autodetect
 
-		for (int i = 0; i < len; i++) {
-			dst[i + dstOff] = src[i + srcOff];
-		}
+	private static final int SALT_LENGTH = 32;
+	public static final int HEADER_LENGTH = SALT_LENGTH + Constants.SYMMETRIC_IV_LENGTH + Integer.BYTES;
+	private static final int EXTRA_DATA = HEADER_LENGTH + Constants.SYMMETRIC_TAG_LENGTH;
+	private final byte[] masterKeyRaw;
+	private final BlockKeyCache cache;
+	private boolean destroyed = false;
 
-	}
-	private static final int writeInt(int value, byte[] dst, int off) {
-		ByteBuffer buf = ByteBuffer.wrap(dst);
-		buf.putInt(off, value);
-		return 4;
-	}
-	private static final int readInt(byte[] value, int off) {
-		return ByteBuffer.wrap(value).getInt(off);
-	}
 	private static final boolean incrementByteArray(byte[] value) {
 
 		for (int i = value.length - 1; i >= 0; i--) {
@@ -64,129 +49,183 @@ public class ChunkParser {
 
 	}
 
-	public ChunkParser(Key key) {
-		this.masterKey = key;
+	/**
+	 * @return The total size of a chunk holding {@code dataLength} bytes of plaintext
+	 */
+	public static int chunkSize(int dataLength) {
+		return EXTRA_DATA + dataLength;
+	}
+	/**
+	 * Reads the plaintext length of the chunk starting at {@code chunk}'s position
+	 * without moving it.
+	 */
+	public static int dataLength(ByteBuffer chunk) {
+		return chunk.getInt(chunk.position() + SALT_LENGTH + Constants.SYMMETRIC_IV_LENGTH) - Constants.SYMMETRIC_TAG_LENGTH;
 	}
 
-	public int newChunk(byte[] data, OutputStream output) throws IOException, GeneralSecurityException {
+	public ChunkParser(Key key) {
+		this(key, new BlockKeyCache());
+	}
+	/**
+	 * @param key The master key
+	 * @param cache The cache to hold derived block keys in. It is destroyed along with this parser.
+	 */
+	public ChunkParser(Key key, BlockKeyCache cache) {
+		this.masterKeyRaw = key.getEncoded();
+		this.cache = cache;
+	}
 
-		DataOutputStream out = new DataOutputStream(output);
+	private Key blockKey(byte[] salt) {
 
-		byte[] salt = new byte[SALT_LENGTH];
-		new SecureRandom().nextBytes(salt);
-		out.write(salt);
+		if (destroyed) throw new IllegalStateException("Parser has been destroyed");
 
 		byte[] blockKeyRaw = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
-		HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
-		hkdf.init(new HKDFParameters(masterKey.getEncoded(), salt, null));
-		hkdf.generateBytes(blockKeyRaw, 0, blockKeyRaw.length);
+		if (!cache.get(salt, blockKeyRaw)) {
+			HKDFBytesGenerator hkdf = CryptoPool.hkdf();
+			hkdf.init(new HKDFParameters(masterKeyRaw, salt, null));
+			hkdf.generateBytes(blockKeyRaw, 0, blockKeyRaw.length);
+			cache.put(salt, blockKeyRaw);
+		}
+
 		Key blockKey = new SecretKeySpec(blockKeyRaw, Constants.SYMMETRIC_CIPHER);
+		Arrays.fill(blockKeyRaw, (byte) 0);
+		return blockKey;
 
-		// generate new IV
-		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
-		out.write(iv);
-		
-		out.writeInt(data.length + Constants.SYMMETRIC_TAG_LENGTH);
+	}
 
-		Cipher cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
-		cipher.init(Cipher.ENCRYPT_MODE, blockKey, new IvParameterSpec(iv));
+	public BlockKeyCache getCache() {
+		return cache;
+	}
 
-		out.write(cipher.doFinal(data));
-		return EXTRA_DATA + data.length;
+	private void encrypt(byte[] salt, byte[] iv, ByteBuffer data, ByteBuffer out) throws GeneralSecurityException {
 
-	}
+		if (out.remaining() < EXTRA_DATA + data.remaining()) throw new ShortBufferException(
+			String.format("Not enough space for chunk: need %d, got %d", EXTRA_DATA + data.remaining(), out.remaining())
+		);
 
-	public int newChunk(byte[] data, RandomAccessFile out) throws IOException, GeneralSecurityException {
+		out.put(salt);
+		out.put(iv);
+		out.putInt(data.remaining() + Constants.SYMMETRIC_TAG_LENGTH);
 
-		out.seek(out.length());
-		byte[] salt = new byte[SALT_LENGTH];
-		new SecureRandom().nextBytes(salt);
-		out.write(salt);
+		Cipher cipher = CryptoPool.cipher(Cipher.ENCRYPT_MODE, blockKey(salt), new IvParameterSpec(iv));
+		cipher.doFinal(data, out);
 
-		byte[] blockKeyRaw = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
-		HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
-		hkdf.init(new HKDFParameters(masterKey.getEncoded(), salt, null));
-		hkdf.generateBytes(blockKeyRaw, 0, blockKeyRaw.length);
-		Key blockKey = new SecretKeySpec(blockKeyRaw, Constants.SYMMETRIC_CIPHER);
+	}
 
-		// generate new IV
-		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
-		out.write(iv);
+	private int decrypt(byte[] salt, byte[] iv, int len, ByteBuffer body, ByteBuffer output) throws GeneralSecurityException {
 
-		out.writeInt(data.length + Constants.SYMMETRIC_TAG_LENGTH);
-		
-		Cipher cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
-		cipher.init(Cipher.ENCRYPT_MODE, blockKey, new IvParameterSpec(iv));
-		
-		out.write(cipher.doFinal(data));
-		return EXTRA_DATA + data.length;
+		if (len < Constants.SYMMETRIC_TAG_LENGTH || body.remaining() < len) throw new ShortBufferException(
+			String.format("Truncated chunk: need %d, got %d", len, body.remaining())
+		);
+
+		Cipher cipher = CryptoPool.cipher(Cipher.DECRYPT_MODE, blockKey(salt), new IvParameterSpec(iv));
+
+		// only hand the cipher this chunk's body
+		int limit = body.limit();
+		body.limit(body.position() + len);
+		try {
+			return cipher.doFinal(body, output);
+		} finally {
+			body.limit(limit);
+		}
 
 	}
 
-	public byte[] newChunk(byte[] data) throws IOException, GeneralSecurityException {
-		byte[] out = new byte[EXTRA_DATA + data.length];
+	/**
+	 * Encrypts {@code data} (all remaining bytes) as a new chunk into {@code out} at its position.
+	 * Both buffers are advanced. Either buffer may be heap or direct.
+	 * @return The number of bytes written to {@code out}
+	 */
+	public int newChunk(ByteBuffer data, ByteBuffer out) throws GeneralSecurityException {
+
+		int start = out.position();
 
-		int offset = 0;
 		byte[] salt = new byte[SALT_LENGTH];
-		new SecureRandom().nextBytes(salt);
-		copyArray(salt, out, 0, 0, salt.length);
-		offset += salt.length;
+		CryptoPool.nextBytes(salt);
+		// all-zero IV, the block key is unique to this chunk
+		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
 
-		byte[] blockKeyRaw = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
-		HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
-		hkdf.init(new HKDFParameters(masterKey.getEncoded(), salt, null));
-		hkdf.generateBytes(blockKeyRaw, 0, blockKeyRaw.length);
-		Key blockKey = new SecretKeySpec(blockKeyRaw, Constants.SYMMETRIC_CIPHER);
+		encrypt(salt, iv, data, out);
+		return out.position() - start;
 
-		// gen IV
-		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
-		copyArray(iv, out, 0, offset, iv.length);
-		offset += iv.length;
+	}
 
-		writeInt(data.length + Constants.SYMMETRIC_TAG_LENGTH, out, offset);
-		offset += Integer.BYTES;
+	/**
+	 * Re-encrypts {@code newData} (all remaining bytes) under the salt of the chunk at {@code chunk}'s
+	 * position, with the next IV, and writes the result into {@code out}. If the IV would overflow a
+	 * fresh salt is used instead. {@code chunk} is not moved, {@code newData} and {@code out} are.
+	 * @return The number of bytes written to {@code out}
+	 */
+	public int updateChunk(ByteBuffer chunk, ByteBuffer newData, ByteBuffer out) throws GeneralSecurityException {
 
-		Cipher cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
-		cipher.init(Cipher.ENCRYPT_MODE, blockKey, new IvParameterSpec(iv));
+		if (chunk.remaining() < HEADER_LENGTH) throw new ShortBufferException("Truncated chunk header");
 
-		copyArray(cipher.doFinal(data), out, 0, offset, data.length + Constants.SYMMETRIC_TAG_LENGTH);
+		int start = out.position();
 
-		return out;
+		byte[] salt = new byte[SALT_LENGTH];
+		chunk.get(chunk.position(), salt);
+
+		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
+		chunk.get(chunk.position() + SALT_LENGTH, iv);
+		if (incrementByteArray(iv) /* true on overflow, new salt/IV */) {
+			return newChunk(newData, out);
+		}
+
+		encrypt(salt, iv, newData, out);
+		return out.position() - start;
 
 	}
 
-	public byte[] updateChunk(byte[] chunk, byte[] newData) throws IOException, GeneralSecurityException {
+	/**
+	 * Decrypts the chunk at {@code input}'s position into {@code output}.
+	 * {@code input} is advanced past the whole chunk, {@code output} past the plaintext.
+	 * Either buffer may be heap or direct.
+	 * @return The number of plaintext bytes written
+	 */
+	public int decryptChunk(ByteBuffer input, ByteBuffer output) throws GeneralSecurityException {
 
-		byte[] out = new byte[EXTRA_DATA + newData.length];
+		if (input.remaining() < HEADER_LENGTH) throw new ShortBufferException("Truncated chunk header");
 
 		byte[] salt = new byte[SALT_LENGTH];
-		copyArray(chunk, salt, 0, 0, salt.length);
-		copyArray(salt, out, 0, 0, salt.length);
-		int offset = salt.length;
-		
+		input.get(salt);
+
 		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
-		copyArray(chunk, iv, offset, 0, iv.length);
-		if (incrementByteArray(iv) /* true on overflow, new salt/IV */) {
-			return newChunk(newData);
-		}
+		input.get(iv);
 
-		copyArray(iv, out, 0, offset, iv.length);
-		offset += iv.length;
+		int len = input.getInt();
+		return decrypt(salt, iv, len, input, output);
 
-		byte[] blockKeyRaw = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
-		HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
-		hkdf.init(new HKDFParameters(masterKey.getEncoded(), salt, null));
-		hkdf.generateBytes(blockKeyRaw, 0, blockKeyRaw.length);
-		Key blockKey = new SecretKeySpec(blockKeyRaw, Constants.SYMMETRIC_CIPHER);
+	}
 
-		writeInt(newData.length + Constants.SYMMETRIC_TAG_LENGTH, out, offset);
-		offset += Integer.BYTES;
+	public int newChunk(byte[] data, OutputStream output) throws IOException, GeneralSecurityException {
+
+		byte[] chunk = newChunk(data);
+		output.write(chunk);
+		return chunk.length;
+
+	}
+
+	public int newChunk(byte[] data, RandomAccessFile out) throws IOException, GeneralSecurityException {
 
-		Cipher cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
-		cipher.init(Cipher.ENCRYPT_MODE, blockKey, new IvParameterSpec(iv));
+		byte[] chunk = newChunk(data);
+		out.seek(out.length());
+		out.write(chunk);
+		return chunk.length;
+
+	}
 
-		copyArray(cipher.doFinal(newData), out, 0, offset, newData.length + Constants.SYMMETRIC_TAG_LENGTH);
+	public byte[] newChunk(byte[] data) throws IOException, GeneralSecurityException {
 
+		byte[] out = new byte[EXTRA_DATA + data.length];
+		newChunk(ByteBuffer.wrap(data), ByteBuffer.wrap(out));
+		return out;
+
+	}
+
+	public byte[] updateChunk(byte[] chunk, byte[] newData) throws IOException, GeneralSecurityException {
+
+		byte[] out = new byte[EXTRA_DATA + newData.length];
+		updateChunk(ByteBuffer.wrap(chunk), ByteBuffer.wrap(newData), ByteBuffer.wrap(out));
 		return out;
 
 	}
@@ -196,82 +235,38 @@ public class ChunkParser {
 		DataInputStream in = new DataInputStream(input);
 
 		byte[] salt = new byte[SALT_LENGTH];
-		if (in.read(salt) != SALT_LENGTH) throw new ShortBufferException(); // read salt
+		in.readFully(salt);
 
 		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
-		if (in.read(iv) != Constants.SYMMETRIC_IV_LENGTH) throw new ShortBufferException(); // read IV
-		
-		int len = in.readInt();
-		
-		byte[] blockKeyRaw = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
-		HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
-		hkdf.init(new HKDFParameters(masterKey.getEncoded(), salt, null));
-		hkdf.generateBytes(blockKeyRaw, 0, blockKeyRaw.length);
-		Key blockKey = new SecretKeySpec(blockKeyRaw, Constants.SYMMETRIC_CIPHER);
-		
-		Cipher cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
-		cipher.init(Cipher.DECRYPT_MODE, blockKey, new IvParameterSpec(iv));
+		in.readFully(iv);
 
-		cipher.doFinal(in.readNBytes(len), 0, len, output);
+		int len = in.readInt();
+		decrypt(salt, iv, len, ByteBuffer.wrap(in.readNBytes(len)), ByteBuffer.wrap(output));
 
-		return EXTRA_DATA + len;
+		return HEADER_LENGTH + len;
 
 	}
 
 	public byte[] decryptChunk(RandomAccessFile input) throws IOException, GeneralSecurityException {
 
-		byte[] salt = new byte[SALT_LENGTH];
-		if (input.read(salt) != SALT_LENGTH) throw new ShortBufferException(); // read salt
+		byte[] header = new byte[HEADER_LENGTH];
+		input.readFully(header);
+		ByteBuffer buf = ByteBuffer.wrap(header);
 
-		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
-		if (input.read(iv) != Constants.SYMMETRIC_IV_LENGTH) throw new ShortBufferException(); // read IV
-		
-		int len = input.readInt();
-		
-		byte[] blockKeyRaw = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
-		HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
-		hkdf.init(new HKDFParameters(masterKey.getEncoded(), salt, null));
-		hkdf.generateBytes(blockKeyRaw, 0, blockKeyRaw.length);
-		Key blockKey = new SecretKeySpec(blockKeyRaw, Constants.SYMMETRIC_CIPHER);
-		
-		Cipher cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
-		cipher.init(Cipher.DECRYPT_MODE, blockKey, new IvParameterSpec(iv));
+		byte[] chunk = new byte[HEADER_LENGTH + buf.getInt(HEADER_LENGTH - Integer.BYTES)];
+		System.arraycopy(header, 0, chunk, 0, HEADER_LENGTH);
+		input.readFully(chunk, HEADER_LENGTH, chunk.length - HEADER_LENGTH);
 
-		byte[] data = new byte[len];
-		if (input.read(data) != len) throw new ShortBufferException();
-		
-		return cipher.doFinal(data, 0, len);
+		return decryptChunk(chunk);
 
 	}
 
 	public byte[] decryptChunk(byte[] input) throws IOException, GeneralSecurityException {
 
-		int offset = 0;
-		// get salt
-		byte[] salt = new byte[SALT_LENGTH];
-		copyArray(input, salt, offset, 0, SALT_LENGTH);
-		offset += salt.length;
-		
-		// get IV
-		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
-		copyArray(input, iv, offset, 0, Constants.SYMMETRIC_IV_LENGTH);
-		offset += iv.length;
-		
-		// get length
-		int len = readInt(input, offset);
-		offset += 4;
-
-		// decrypt data
-		byte[] blockKeyRaw = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
-		HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
-		hkdf.init(new HKDFParameters(masterKey.getEncoded(), salt, null));
-		hkdf.generateBytes(blockKeyRaw, 0, blockKeyRaw.length);
-		Key blockKey = new SecretKeySpec(blockKeyRaw, Constants.SYMMETRIC_CIPHER);
-		
-		Cipher cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
-		cipher.init(Cipher.DECRYPT_MODE, blockKey, new IvParameterSpec(iv));
-
-		return cipher.doFinal(input, offset, len);
+		ByteBuffer in = ByteBuffer.wrap(input);
+		byte[] out = new byte[dataLength(in)];
+		decryptChunk(in, ByteBuffer.wrap(out));
+		return out;
 
 	}
 
@@ -284,4 +279,15 @@ public class ChunkParser {
 
 	}
 
+	@Override
+	public void destroy() {
+		cache.destroy();
+		Arrays.fill(masterKeyRaw, (byte) 0);
+		destroyed = true;
+	}
+	@Override
+	public boolean isDestroyed() {
+		return destroyed;
+	}
+
 }
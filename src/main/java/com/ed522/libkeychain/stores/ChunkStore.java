@@ -0,0 +1,1272 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.crypto.SecretKey;
+import javax.security.auth.DestroyFailedException;
+import javax.security.auth.Destroyable;
+
+import org.bouncycastle.util.Arrays;
+
+import com.ed522.libkeychain.util.Logger;
+import com.ed522.libkeychain.util.Logger.Level;
+
+/**
+ * The file behind a store: everything a store does with it that doesn't depend on what its
+ * entries are. That is creating and reading the file, appending and tombstoning chunks, batches
+ * and their journal, the write-ahead log, the directory, compaction, syncing, sharing the file
+ * with other processes, snapshots and the change feed.
+ *
+ * A store says how its entries are encoded through the codec hooks ({@link #decode},
+ * {@link #encode}, {@link #describe}, {@link #fromDirectory}, {@link #pin}), and keeps its own
+ * lookup indexes in step through the index hooks ({@link #index}, {@link #unindex}). Hooks are
+ * called holding the store's lock. None are called by this class's constructor: a subclass reads
+ * the file by calling {@link #open} at the end of its own, once everything its hooks use is set.
+ *
+ * Public only because the stores are in their own packages, see {@code Keystore} and
+ * {@code AliasStore} for the entries and the file format.
+ */
+public abstract class ChunkStore<T> implements Closeable, Destroyable {
+
+	/*
+	 * Each file shall be split into *segments* (chunks, see ChunkParser), that are each encrypted on their own.
+	 * Each segment is of a variable length, with a random 32-byte salt at the start, a 12-byte IV, a 32-bit length and an extra 16 bytes for the AEAD tag.
+	 *
+	 * Each segment's salt derives its own block key from the master key (HKDF).
+	 * New segments start with an all-zero IV, a segment rewritten in place keeps its salt and increments its IV.
+	 *
+	 * All encryption is ChaCha20-Poly1305.
+	 * Upon IV overflow the segment is regenerated with a new salt & IV (and therefore a new block key).
+	 * The master key is derived from the password and SALT, as set by the header (see KdfParams).
+	 *
+	 * File
+	 *  MAGIC: 4B                   PLAIN       // set by the store (US ASCII), the v2 one is followed by key derivation parameters
+	 *  SALT: 32B                   PLAIN       // salt the password
+	 *  ----- everything past this is encrypted and segmented -----
+	 *  [[ start seg0 ]]
+	 *  VERIFY: 16B                 CRYPT       // test if key is correct, one block (see constant for value)
+	 *  ENTRIES: 8B                 CRYPT       // chunk count, including removed entries
+	 *  [[ end seg0 ]]
+	 *  ENTRIES: Entry[]            CRYPT       // encoded by the store, each in their own chunk
+	 *                                          // removed ones are tombstones (see Tombstone), may end in a Directory
+	 */
+
+	public static final int SALT_LENGTH = 32;
+	/** Count in chunk0 of a file whose entries run up to its end, as a streamed export leaves it */
+	public static final long UNKNOWN_COUNT = -1;
+	protected static final String ALREADY_CLOSED_MESSAGE = "Already closed or destroyed, not accessible anymore";
+	private static final byte[] VERIFICATION_BYTES = {0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F};
+	private static final int CHUNK0_LENGTH = ChunkParser.chunkSize(VERIFICATION_BYTES.length + Long.BYTES);
+
+	private final File file;
+	private final StoreOptions options;
+	private RandomAccessFile raf;
+	// set by open(), or by the constructor for a store that has no file
+	private SecretKey masterKey;
+	private ChunkParser parser;
+	private final List<T> entries = new ArrayList<>();
+	// what getEntries() hands out, republished after every change
+	private volatile Snapshot<T> view = Snapshot.empty();
+	private final ChangeFeed<T> events;
+	// where each entry's chunk is in the file, same order as entries
+	private ChunkTable chunks = new ChunkTable(0);
+	// the same by entry, for load(); entries only in the write-ahead log have none
+	private final Map<T, Location> located = new IdentityHashMap<>();
+	// bytes taken up by tombstones
+	private long deadBytes = 0;
+	// bytes of the directory and its trailer, 0 unless the file ends in a current one
+	private long directoryLength = 0;
+	// magic, key derivation parameters and salt, everything before chunk0
+	private long headerLength = 0;
+	private boolean compactionQueued = false;
+	private boolean syncScheduled = false;
+	// staged writes of the open batch, null outside of one
+	private WriteBatch pending = null;
+	// null unless opened with a write-ahead log
+	private WriteAheadLog wal = null;
+	// logged operations of the open batch, with a write-ahead log
+	private List<WriteAheadLog.Op> pendingOps = null;
+	// null unless shared with other processes
+	private final SharedFile shared;
+	// how much of the file this store has read or written, other processes append after it
+	private long seenLength = 0;
+	private volatile boolean closed = false;
+
+	private record Location(long offset, int size) {}
+
+	/**
+	 * Sets up a store for a file, creating the file if there is none. Nothing is read until
+	 * {@link #open}.
+	 *
+	 * @param key What identifies an entry in the change feed, see {@link ChangeFeed}
+	 */
+	protected ChunkStore(File file, StoreOptions options, Function<? super T, ?> key) throws IOException {
+
+		if (!file.exists() && !file.createNewFile()) throw new IllegalStateException("Failed to create file");
+
+		if (options.isShared() && options.isWriteAheadLog()) throw new IllegalArgumentException("A shared store can't use a write-ahead log");
+
+		this.file = file;
+		this.options = options;
+		this.events = new ChangeFeed<>(key);
+		this.raf = new RandomAccessFile(file, "rw");
+		try {
+			this.shared = options.isShared() ? new SharedFile(lockPath()) : null;
+		} catch (IOException | RuntimeException e) {
+			try {
+				raf.close();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+
+	}
+
+	/**
+	 * Reads the store file, or writes a new one if it is empty, and indexes the entries. Called
+	 * once, at the end of the subclass's constructor.
+	 *
+	 * @param magic The magic of files without key derivation parameters
+	 * @param magicV2 The magic of files with them
+	 */
+	protected final void open(String password, String magic, String magicV2) throws IOException, GeneralSecurityException {
+
+		if (masterKey != null) throw new IllegalStateException("Already open");
+
+		SecretKey[] derived = new SecretKey[1];
+		long[] header = new long[1];
+		long[] directory = new long[1];
+
+		// another process may be writing the file, or creating it
+		if (shared != null) {
+			shared.lock();
+			shared.changes();
+		}
+		try {
+			// build new
+			if (file.length() == 0) {
+				buildFile(this.raf, file.toPath(), password, options, magic, magicV2, derived, header);
+			} else {
+				// read
+				entries.addAll(readFile(password, magic, magicV2, derived, header, directory));
+			}
+
+			masterKey = derived[0];
+			parser = new ChunkParser(masterKey);
+
+			// changes logged since the last checkpoint
+			byte[] chunk0 = new byte[CHUNK0_LENGTH];
+			headerLength = header[0];
+			readAt(headerLength, chunk0);
+			List<WriteAheadLog.Op> logged = WriteAheadLog.replay(walPath(), parser, chunk0);
+			for (WriteAheadLog.Op op : logged) replay(op);
+			view = Snapshot.of(entries);
+			entries.forEach(this::index);
+			directoryLength = directory[0];
+			deadBytes = raf.length() - headerEnd() - chunks.totalSize() - directoryLength;
+			seenLength = raf.length();
+
+			if (options.isWriteAheadLog()) {
+				wal = new WriteAheadLog(walPath(), parser, chunk0);
+			} else if (!logged.isEmpty()) {
+				// fold the log into the file before writing to the file directly
+				compact();
+			}
+		} catch (IOException | GeneralSecurityException | RuntimeException e) {
+			// the store is never handed out, so nothing else would close it
+			try {
+				if (derived[0] != null) derived[0].destroy();
+			} catch (DestroyFailedException suppressed) {
+				// disregard failed destroy, this is a close operation
+			}
+			try {
+				release();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+
+		if (shared != null) {
+			// creating, recovering a batch or counting a streamed export all write
+			shared.written();
+			shared.unlock();
+		}
+
+	}
+
+	/**
+	 * A store of a file that has already been written elsewhere, see the stream constructors of
+	 * the stores. It has no entries and no file of its own.
+	 *
+	 * @param written The writer the file was written with, finished but not closed
+	 * @param key What identifies an entry in the change feed, see {@link ChangeFeed}
+	 */
+	protected ChunkStore(ChunkWriter<? extends T> written, Function<? super T, ?> key) {
+		this.file = null;
+		this.options = new StoreOptions();
+		this.events = new ChangeFeed<>(key);
+		this.raf = null;
+		this.shared = null;
+		this.masterKey = written.getMasterKey();
+		this.parser = new ChunkParser(masterKey);
+	}
+
+	/**
+	 * Decodes an entry from the plaintext of its chunk. The plaintext is wiped afterwards,
+	 * so the entry must not keep it.
+	 */
+	protected abstract T decode(byte[] plaintext) throws IOException, GeneralSecurityException;
+	/**
+	 * Decodes an entry read from the file, which may leave decoding the rest of it to
+	 * {@link #load}. By default decodes all of it.
+	 */
+	protected T decodeStored(byte[] plaintext) throws IOException, GeneralSecurityException {
+		return decode(plaintext);
+	}
+	protected abstract byte[] encode(T entry) throws GeneralSecurityException;
+	/**
+	 * @return The entry as it goes in the directory, with its chunk at {@code offset}
+	 */
+	protected abstract Directory.Entry describe(T entry, long offset, int size);
+	/**
+	 * @return An entry for a directory entry, decoded from its chunk by {@link #load} when needed
+	 */
+	protected abstract T fromDirectory(Directory.Entry entry);
+	/**
+	 * Decodes all of a lazily decoded entry, and has it keep what it decoded.
+	 */
+	protected abstract void pin(T entry);
+	/**
+	 * Adds an entry to the store's indexes, unless an earlier entry already has its place.
+	 */
+	protected abstract void index(T entry);
+	/**
+	 * Takes an entry that has been removed out of the store's indexes.
+	 */
+	protected abstract void unindex(T entry);
+
+	private static byte[] toBytes(int val) {
+		return ByteBuffer.allocate(4).putInt(val).array();
+	}
+	/**
+	 * @return The plaintext of chunk0, for a file of {@code count} chunks
+	 */
+	public static byte[] chunk0(long count) {
+		return ByteBuffer.allocate(VERIFICATION_BYTES.length + Long.BYTES).put(VERIFICATION_BYTES).putLong(count).array();
+	}
+	/**
+	 * Build a completely new file.
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	private static void buildFile(RandomAccessFile file, Path path, String password, StoreOptions options, String magic, String magicV2, SecretKey[] keyToSet, long[] headerToSet) throws IOException, GeneralSecurityException {
+
+		KdfParams kdf = options.getKdf();
+		// the original header when possible, so older versions can still open the file
+		file.write(kdf.header(magic, magicV2));
+
+		byte[] salt = new byte[SALT_LENGTH];
+		CryptoPool.nextBytes(salt);
+		file.write(salt);
+
+		// fresh salt, nothing to look up
+		SecretKey masterKey = KeyDerivation.derive(password, salt, kdf);
+		UnlockCache.remember(path, password, salt, kdf, masterKey, options);
+		headerToSet[0] = file.getFilePointer();
+		keyToSet[0] = masterKey;
+
+		// chunked
+		ChunkParser parser = new ChunkParser(masterKey);
+		// verification, 0 entries
+		file.write(parser.newChunk(chunk0(0)));
+		parser.destroy();
+
+	}
+	// null for a tombstone or directory, wipes the plaintext
+	private static <T> T decodeChunk(byte[] plain, ParallelChunkLoader.EntryParser<T> decoder) throws IOException, GeneralSecurityException {
+		try {
+			return Tombstone.isTombstone(plain) || Directory.isDirectory(plain) ? null : decoder.parse(plain);
+		} finally {
+			Arrays.fill(plain, (byte) 0);
+		}
+	}
+	private List<T> readFile(String password, String magic, String magicV2, SecretKey[] keyToSet, long[] headerToSet, long[] directoryToSet) throws GeneralSecurityException, IOException {
+
+		RandomAccessFile file = this.raf;
+		Path path = this.file.toPath();
+		List<T> entryList = new ArrayList<>();
+
+		// magic, and the key derivation parameters that go with it
+		KdfParams kdf = KdfParams.readHeader(file, magic, magicV2);
+
+		byte[] salt = new byte[SALT_LENGTH];
+		file.readFully(salt);
+		long headerLength = file.getFilePointer();
+		headerToSet[0] = headerLength;
+
+		// derived once, the store keeps using it
+		SecretKey masterKey = UnlockCache.unlock(path, password, salt, kdf, options);
+		keyToSet[0] = masterKey;
+
+		// read first chunk
+		ChunkParser parser = new ChunkParser(masterKey);
+		// finish a batch commit that was cut short
+		Journal.recover(journalPath(), file.getChannel(), parser, headerLength, CHUNK0_LENGTH);
+		MappedChunkReader reader = options.isMappedRead() && file.length() <= Integer.MAX_VALUE ? new MappedChunkReader(file.getChannel(), file.getFilePointer()) : null;
+		try {
+			ByteBuffer data = ByteBuffer.wrap(reader != null ? reader.decryptNext(parser) : parser.decryptChunk(file));
+			byte[] verification = new byte[VERIFICATION_BYTES.length];
+
+			data.get(verification);
+			if (!Arrays.areEqual(verification, VERIFICATION_BYTES)) throw new StreamCorruptedException("Bad encryption verification (wrong password?)");
+			UnlockCache.remember(path, password, salt, kdf, masterKey, options);
+
+			long count = data.getLong();
+			if (count == UNKNOWN_COUNT) {
+				// a streamed export, every chunk up to the end is an entry, write down how many
+				long start = reader != null ? reader.position() : file.getFilePointer();
+				count = ChunkTable.scanTo(file.getChannel(), start, file.length()).count();
+				byte[] chunk0 = new byte[CHUNK0_LENGTH];
+				ChunkTable.readFully(file.getChannel(), ByteBuffer.wrap(chunk0), headerLength);
+				data.putLong(VERIFICATION_BYTES.length, count);
+				ChunkTable.writeFully(file.getChannel(), ByteBuffer.wrap(parser.updateChunk(chunk0, data.array())), headerLength);
+			}
+
+			// looked for even if not used, so writes can keep it from going stale
+			Directory.Listing listing = Directory.read(file.getChannel(), parser, headerLength + CHUNK0_LENGTH, file.length(), count);
+			if (listing != null) directoryToSet[0] = file.length() - listing.offset();
+			if (listing != null && options.isDirectory()) {
+				// nothing else needs decrypting
+				for (Directory.Entry entry : listing.entries()) {
+					T lazy = fromDirectory(entry);
+					entryList.add(lazy);
+					place(lazy, entry.offset(), entry.size());
+				}
+				return entryList;
+			}
+
+			if (options.isParallelLoad()) {
+				ChunkTable table = reader != null ? reader.scan(count) : ChunkTable.scan(file.getChannel(), file.getFilePointer(), count);
+				List<T> loaded = new ParallelChunkLoader(parser, options.getLoadPool()).load(
+					table, file.getChannel(), reader, plain -> decodeChunk(plain, this::decodeStored)
+				);
+				for (int i = 0; i < table.count(); i++) {
+					if (loaded.get(i) == null) continue;
+					entryList.add(loaded.get(i));
+					place(loaded.get(i), table.offset(i), table.size(i));
+				}
+				file.seek(table.end());
+			} else {
+				for (int i = 0; i < count; i++) {
+					long offset = reader != null ? reader.position() : file.getFilePointer();
+					byte[] plain = reader != null ? reader.decryptNext(parser) : parser.decryptChunk(file);
+					T entry = decodeChunk(plain, this::decodeStored);
+					if (entry == null) continue;
+					entryList.add(entry);
+					place(entry, offset, (int) ((reader != null ? reader.position() : file.getFilePointer()) - offset));
+				}
+				if (reader != null) file.seek(reader.position());
+			}
+
+			// a directory whose chunks were no longer counted, cut short while being cut off
+			if (file.getFilePointer() < file.length()) file.setLength(file.getFilePointer());
+
+			return entryList;
+
+		} finally {
+			parser.destroy();
+		}
+
+	}
+
+	// adds the chunk of an entry that is in the file
+	private void place(T entry, long offset, int size) {
+		chunks.add(offset, size);
+		located.put(entry, new Location(offset, size));
+	}
+	// drops the chunk of the entry at i, which is leaving the store
+	private void displace(int i) {
+		chunks.remove(i);
+		located.remove(entries.get(i));
+	}
+
+	/**
+	 * @return The live entries, unmodifiable, for the index hooks. Everything else should use
+	 * {@link #getEntries()}.
+	 */
+	protected final List<T> entries() {
+		return Collections.unmodifiableList(entries);
+	}
+	protected final StoreOptions options() {
+		return options;
+	}
+	protected final void checkOpen() {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+	}
+	/**
+	 * Runs a task on the store's async executor, see {@link StoreOptions#setAsyncExecutor}.
+	 */
+	protected final <R> CompletableFuture<R> async(StoreExecutor.Task<R> task) {
+		return StoreExecutor.submit(options.getAsyncExecutor(), task);
+	}
+
+	private synchronized void removeEntry(int i) throws IOException, GeneralSecurityException {
+
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+
+		// a lazy entry can't be read back once its chunk is gone
+		pin(entries.get(i));
+
+		if (wal != null) {
+			log(List.of(WriteAheadLog.Op.remove(i, chunks.offset(i))));
+			if (chunks.offset(i) != ChunkTable.UNWRITTEN) deadBytes += chunks.size(i);
+			displace(i);
+			return;
+		}
+
+		dropDirectory(true);
+
+		// overwrite in place with a tombstone of the same size, nothing else moves
+		long offset = chunks.offset(i);
+		int size = chunks.size(i);
+		byte[] header = new byte[ChunkParser.HEADER_LENGTH];
+		readAt(offset, header);
+		writeAt(offset, parser.updateChunk(header, Tombstone.of(size - ChunkParser.chunkSize(0))));
+		if (shared != null) shared.removed(offset);
+		// before the bookkeeping, so a failed sync leaves the entry and its chunk in step
+		afterWrite();
+
+		displace(i);
+		deadBytes += size;
+
+	}
+
+	// the directory of every entry as it is in the file
+	private List<Directory.Entry> listing(ChunkTable table) {
+		List<Directory.Entry> listing = new ArrayList<>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			listing.add(describe(entries.get(i), table.offset(i), table.size(i)));
+		}
+		return listing;
+	}
+	// appends a directory, unless the file already ends in a current one
+	private void writeDirectory() throws IOException, GeneralSecurityException {
+
+		// with a log the file only changes at checkpoints, which write their own
+		if (!options.isDirectory() || directoryLength != 0 || wal != null) return;
+
+		beginWrite();
+		try {
+			// another process may have written one
+			if (directoryLength != 0) return;
+
+			long offset = fileLength();
+			byte[] directory = parser.newChunk(Directory.encode(listing(chunks)));
+			long count = updateCount(2);
+
+			ByteBuffer out = ByteBuffer.allocate(directory.length + Directory.TRAILER_LENGTH);
+			out.put(directory);
+			parser.newChunk(ByteBuffer.wrap(Directory.trailer(offset, count)), out);
+			writeAt(offset, out.array());
+			directoryLength = out.capacity();
+			afterWrite();
+		} finally {
+			endWrite();
+		}
+
+	}
+	// the file is about to stop matching the directory
+	private void dropDirectory(boolean overwrite) throws IOException, GeneralSecurityException {
+
+		if (directoryLength == 0) return;
+		if (pending == null && shared == null) {
+			// it is the end of the file, cut it off instead of leaving a stale copy behind every
+			// time the store is written to; the count first, see readFile() for a crash in between
+			updateCount(-2);
+			raf.setLength(raf.length() - directoryLength);
+			directoryLength = 0;
+			return;
+		}
+		// a batch can only append, other processes only see the file grow
+		if (overwrite) {
+			// an append moves the trailer away from the end by itself, anything else has to kill it
+			long offset = fileLength() - Directory.TRAILER_LENGTH;
+			byte[] header = new byte[ChunkParser.HEADER_LENGTH];
+			readAt(offset, header);
+			writeAt(offset, parser.updateChunk(header, Directory.deadTrailer()));
+		}
+		deadBytes += directoryLength;
+		directoryLength = 0;
+
+	}
+
+	/**
+	 * Reads a lazily decoded entry back from its chunk.
+	 * @return The entry decoded in full
+	 * @throws IllegalStateException If the entry has been removed
+	 */
+	protected synchronized T load(T lazy) throws IOException, GeneralSecurityException {
+
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+
+		// by identity, equals() would load the entries it compares against
+		Location at = located.get(lazy);
+		if (at == null) throw new IllegalStateException("Entry is not in this store anymore");
+
+		byte[] chunk = new byte[at.size()];
+		readAt(at.offset(), chunk);
+		return decodeChunk(parser.decryptChunk(chunk), this::decode);
+
+	}
+
+	private void replay(WriteAheadLog.Op op) throws IOException, GeneralSecurityException {
+		switch (op.type()) {
+			case WriteAheadLog.ADD -> {
+				entries.add(decode(op.data()));
+				chunks.add(ChunkTable.UNWRITTEN, 0);
+			}
+			case WriteAheadLog.REMOVE -> {
+				// the log's header ties it to this chunk0, this catches a file changed without it
+				if (op.data().length != Integer.BYTES + Long.BYTES || op.index() < 0 || op.index() >= entries.size() || chunks.offset(op.index()) != op.offset()) {
+					throw new StreamCorruptedException("Log doesn't match the store file");
+				}
+				displace(op.index());
+				entries.remove(op.index());
+			}
+			default -> throw new StreamCorruptedException("Bad log operation " + op.type());
+		}
+	}
+	private void log(List<WriteAheadLog.Op> ops) throws IOException, GeneralSecurityException {
+		if (pendingOps != null) {
+			pendingOps.addAll(ops);
+		} else {
+			wal.append(ops);
+			afterWrite();
+		}
+	}
+	private boolean inBatch() {
+		return pending != null || pendingOps != null;
+	}
+
+	private long fileLength() throws IOException {
+		return pending != null ? pending.length() : raf.length();
+	}
+	// where the first entry chunk starts
+	private long headerEnd() {
+		return headerLength + CHUNK0_LENGTH;
+	}
+	private void readAt(long offset, byte[] dst) throws IOException {
+		if (pending != null) pending.read(raf.getChannel(), offset, dst);
+		else ChunkTable.readFully(raf.getChannel(), ByteBuffer.wrap(dst), offset);
+	}
+	private void writeAt(long offset, byte[] data) throws IOException {
+		if (pending != null) pending.write(offset, data);
+		else ChunkTable.writeFully(raf.getChannel(), ByteBuffer.wrap(data), offset);
+	}
+
+	// with a shared file, takes the lock and catches up with other processes before writing
+	private void beginWrite() {
+		if (shared == null || inBatch()) return;
+		try {
+			shared.lock();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		try {
+			catchUp();
+		} catch (IOException | GeneralSecurityException | RuntimeException e) {
+			try {
+				shared.unlock();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e instanceof RuntimeException r ? r : new IllegalStateException(e);
+		}
+	}
+	private void endWrite() {
+		if (shared == null || inBatch()) return;
+		try {
+			seenLength = raf.length();
+			shared.unlock();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// applies what other processes wrote since this store last looked, holding the lock
+	private void catchUp() throws IOException, GeneralSecurityException {
+
+		SharedFile.Changes changes = shared.changes();
+		if (changes == null) return;
+
+		List<T> removed = new ArrayList<>();
+		List<T> added = new ArrayList<>();
+		if (changes.rewritten()) {
+			relocate(removed, added);
+		} else {
+			for (long offset : changes.removed()) {
+				int i = chunks.indexOf(offset);
+				if (i < 0) continue;
+				displace(i);
+				removed.add(entries.remove(i));
+			}
+		}
+
+		// appended since, only these get decrypted
+		long end = raf.length();
+		ChunkTable appended = ChunkTable.scanTo(raf.getChannel(), seenLength, end);
+		for (int i = 0; i < appended.count(); i++) {
+			T entry = readEntry(appended.offset(i), appended.size(i));
+			if (entry == null) continue;
+			entries.add(entry);
+			place(entry, appended.offset(i), appended.size(i));
+			added.add(entry);
+		}
+		seenLength = end;
+
+		if (!removed.isEmpty() || !added.isEmpty()) {
+			removed.forEach(this::unindex);
+			// another entry may have to take a removed one's place
+			if (!removed.isEmpty()) entries.forEach(this::index);
+			else added.forEach(this::index);
+			view = view.replacedBy(entries);
+			removed.forEach(events::removed);
+			added.forEach(events::added);
+		}
+
+		Directory.Listing listing = Directory.read(raf.getChannel(), parser, headerEnd(), end, readCount());
+		directoryLength = listing != null ? end - listing.offset() : 0;
+		deadBytes = end - headerEnd() - chunks.totalSize() - directoryLength;
+
+	}
+	// after another process compacted the file: compaction copies chunks unchanged, so their salt and
+	// IV show where each entry went, and only chunks this store hasn't seen are decrypted
+	private void relocate(List<T> removed, List<T> added) throws IOException, GeneralSecurityException {
+
+		Map<ByteBuffer, T> byId = new HashMap<>();
+		for (int i = 0; i < chunks.count(); i++) byId.put(SharedFile.chunkId(raf.getChannel(), chunks.offset(i)), entries.get(i));
+
+		// still the replaced file
+		raf.close();
+		raf = new RandomAccessFile(file, "rw");
+		long end = raf.length();
+		ChunkTable table = ChunkTable.scanTo(raf.getChannel(), headerEnd(), end);
+
+		List<T> moved = new ArrayList<>(table.count());
+		ChunkTable movedChunks = new ChunkTable(headerEnd());
+		for (int i = 0; i < table.count(); i++) {
+			T entry = byId.remove(SharedFile.chunkId(raf.getChannel(), table.offset(i)));
+			if (entry == null) {
+				entry = readEntry(table.offset(i), table.size(i));
+				if (entry == null) continue;
+				added.add(entry);
+			}
+			moved.add(entry);
+			movedChunks.add(table.offset(i), table.size(i));
+		}
+		removed.addAll(byId.values());
+
+		entries.clear();
+		entries.addAll(moved);
+		chunks = movedChunks;
+		relocated();
+		seenLength = end;
+
+	}
+	// after every chunk may have moved
+	private void relocated() {
+		located.clear();
+		for (int i = 0; i < entries.size(); i++) {
+			if (chunks.offset(i) != ChunkTable.UNWRITTEN) located.put(entries.get(i), new Location(chunks.offset(i), chunks.size(i)));
+		}
+	}
+	// null for a tombstone or directory
+	private T readEntry(long offset, int size) throws IOException, GeneralSecurityException {
+		byte[] chunk = new byte[size];
+		readAt(offset, chunk);
+		return decodeChunk(parser.decryptChunk(chunk), this::decodeStored);
+	}
+	private long readCount() throws IOException, GeneralSecurityException {
+		byte[] chunk = new byte[CHUNK0_LENGTH];
+		readAt(headerLength, chunk);
+		return ByteBuffer.wrap(parser.decryptChunk(chunk)).getLong(VERIFICATION_BYTES.length);
+	}
+
+	/**
+	 * Catches up with what other processes wrote to the file, for a store opened with
+	 * {@link StoreOptions#setShared}. Only reads the chunks added since this store last looked,
+	 * and if nothing changed, only 8 bytes of the lock file. Writes catch up by themselves.
+	 * @return Whether any entries were added or removed
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public synchronized boolean refresh() throws IOException, GeneralSecurityException {
+
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		if (shared == null) throw new IllegalStateException("Not opened as shared");
+		// a batch holds the lock, nobody else has written
+		if (inBatch() || !shared.isStale()) return false;
+
+		long before = view.version();
+		beginWrite();
+		endWrite();
+		return view.version() != before;
+
+	}
+
+	private void afterWrite() throws IOException {
+		if (shared != null) shared.written();
+		if (inBatch()) return; // synced by commit()
+		switch (options.getDurability()) {
+			case SYNC -> (wal != null ? wal.getChannel() : raf.getChannel()).force(false);
+			case GROUP -> {
+				if (!syncScheduled) {
+					syncScheduled = true;
+					GroupCommit.schedule(this::groupSync, options.getGroupCommitDelay());
+				}
+			}
+			case MANUAL -> { /* up to the caller */ }
+		}
+	}
+
+	private synchronized void groupSync() {
+		if (closed || !syncScheduled) return;
+		try {
+			sync();
+		} catch (IOException e) {
+			Logger.getDefault().log(Level.ERROR, "Group commit failed: " + e, getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * Forces every change made so far to disk. Only needed with {@link Durability#GROUP} or
+	 * {@link Durability#MANUAL}, with {@link Durability#SYNC} every change already is.
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		syncScheduled = false;
+		raf.getChannel().force(false);
+		if (wal != null) wal.getChannel().force(false);
+	}
+
+	private void compactIfNeeded() {
+
+		if (inBatch()) return; // checked again by commit()
+		double threshold = options.getCompactionThreshold();
+		boolean dead = threshold > 0 && deadBytes >= threshold * (headerEnd() + deadBytes + chunks.totalSize());
+		boolean logFull;
+		try {
+			logFull = wal != null && wal.size() > options.getCheckpointSize();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		if (!dead && !logFull) return;
+
+		Executor executor = options.getCompactionExecutor();
+		if (executor == null) {
+			try {
+				compact();
+			} catch (IOException | GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		} else if (!compactionQueued) {
+			compactionQueued = true;
+			executor.execute(() -> {
+				try {
+					compact();
+				} catch (IOException | GeneralSecurityException | IllegalStateException e) {
+					Logger.getDefault().log(Level.ERROR, "Background compaction or checkpoint failed: " + e, getClass().getSimpleName());
+				}
+			});
+		}
+
+	}
+
+	private Path walPath() {
+		return file.toPath().resolveSibling(file.getName() + ".wal");
+	}
+	private Path journalPath() {
+		return file.toPath().resolveSibling(file.getName() + ".journal");
+	}
+	private Path lockPath() {
+		return file.toPath().resolveSibling(file.getName() + ".lock");
+	}
+
+	/**
+	 * Starts a batch. Until {@link #commit()}, adds and removals show up in this object as usual
+	 * but are only staged in memory instead of being written to the file. Closing the store
+	 * without committing drops the batch.
+	 * @throws IOException
+	 */
+	public synchronized void beginBatch() throws IOException {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		if (inBatch()) throw new IllegalStateException("Batch already in progress");
+		// held until commit() or close(), so nobody else writes in between
+		beginWrite();
+		if (wal != null) pendingOps = new ArrayList<>();
+		else pending = new WriteBatch(raf.length());
+	}
+
+	/**
+	 * Writes everything staged since {@link #beginBatch()} to the file atomically: after a crash the
+	 * file has either all of the batch or none of it. The batch goes through a journal next to the
+	 * file ({@code <file>.journal}), or is one record in the write-ahead log if there is one, and is
+	 * forced to disk before this returns whatever the durability setting.
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public synchronized void commit() throws IOException, GeneralSecurityException {
+
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		if (!inBatch()) throw new IllegalStateException("No batch in progress");
+		writeDirectory();
+
+		if (wal != null) {
+			if (!pendingOps.isEmpty()) {
+				wal.append(pendingOps);
+				wal.getChannel().force(false);
+			}
+			pendingOps = null;
+		} else {
+			// the journal relies on every commit rewriting chunk0
+			updateCount(0);
+			Journal.commit(journalPath(), raf.getChannel(), pending, parser, headerLength, CHUNK0_LENGTH);
+			pending = null;
+		}
+		syncScheduled = false;
+		try {
+			compactIfNeeded();
+		} finally {
+			endWrite();
+		}
+
+	}
+
+	/**
+	 * Rewrites the file without the space left by removed entries. With a write-ahead log this is
+	 * also the checkpoint: every logged change is written into the file and the log is emptied.
+	 *
+	 * The live chunks are copied as they are into a new file next to the store, which then
+	 * atomically replaces it, so the store file is never seen half-written.
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public synchronized void compact() throws IOException, GeneralSecurityException {
+
+		compactionQueued = false;
+		if (closed) return;
+		if (inBatch()) throw new IllegalStateException("Can't compact during a batch");
+		if (deadBytes == 0 && chunks.allWritten()) return;
+
+		beginWrite();
+		try {
+			rewrite();
+		} finally {
+			endWrite();
+		}
+
+	}
+	// copies the live chunks into a new file that replaces the store file
+	private void rewrite() throws IOException, GeneralSecurityException {
+
+		Path path = file.toPath();
+		Path temp = path.resolveSibling(path.getFileName() + ".compact");
+		ChunkTable compacted = new ChunkTable(headerEnd());
+		byte[] chunk0;
+
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+			// the header is kept, so is the master key
+			ChunkTable.transferFully(raf.getChannel(), 0, headerLength, out);
+			long count = chunks.count() + (options.isDirectory() ? 2 : 0);
+			chunk0 = parser.newChunk(chunk0(count));
+			out.write(ByteBuffer.wrap(chunk0));
+			for (int i = 0; i < chunks.count(); i++) {
+				long offset = out.position();
+				if (chunks.offset(i) == ChunkTable.UNWRITTEN) {
+					// only in the log so far
+					byte[] chunk = parser.newChunk(encode(entries.get(i)));
+					out.write(ByteBuffer.wrap(chunk));
+					compacted.add(offset, chunk.length);
+				} else {
+					ChunkTable.transferFully(raf.getChannel(), chunks.offset(i), chunks.size(i), out);
+					compacted.add(offset, chunks.size(i));
+				}
+			}
+			if (options.isDirectory()) {
+				long offset = out.position();
+				out.write(ByteBuffer.wrap(parser.newChunk(Directory.encode(listing(compacted)))));
+				out.write(ByteBuffer.wrap(parser.newChunk(Directory.trailer(offset, count))));
+				directoryLength = out.position() - offset;
+			}
+			out.force(true);
+
+		} catch (IOException | GeneralSecurityException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		raf.close();
+		try {
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			chunks = compacted;
+			relocated();
+			deadBytes = 0;
+			if (shared != null) shared.rewritten();
+		} finally {
+			raf = new RandomAccessFile(file, "rw");
+		}
+
+		// the new chunk0 makes any old log stale, emptying it just saves replaying nothing
+		if (wal != null) wal.reset(chunk0);
+		else Files.deleteIfExists(walPath());
+
+	}
+
+	private long updateCount(long delta) throws IOException, GeneralSecurityException {
+
+		// Update chunk0
+		byte[] chunk = new byte[CHUNK0_LENGTH];
+		readAt(headerLength, chunk);
+
+		ByteBuffer buf = ByteBuffer.wrap(parser.decryptChunk(chunk)).position(VERIFICATION_BYTES.length);
+		long count = buf.getLong() + delta;
+		buf.position(buf.position() - 8);
+		buf.putLong(count);
+
+		// write back chunk
+		writeAt(headerLength, parser.updateChunk(chunk, buf.array()));
+		return count;
+
+	}
+
+	private synchronized void newEntry(T entry) throws IOException, GeneralSecurityException {
+
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+
+		if (wal != null) {
+			log(List.of(WriteAheadLog.Op.add(encode(entry))));
+			chunks.add(ChunkTable.UNWRITTEN, 0);
+			return;
+		}
+
+		dropDirectory(false);
+		updateCount(1);
+
+		byte[] chunk = parser.newChunk(encode(entry));
+		long offset = fileLength();
+		writeAt(offset, chunk);
+		place(entry, offset, chunk.length);
+		afterWrite();
+
+	}
+
+	private synchronized void newEntries(Collection<? extends T> batch) throws IOException, GeneralSecurityException {
+
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		if (batch.isEmpty()) return;
+
+		if (wal != null) {
+			List<WriteAheadLog.Op> ops = new ArrayList<>(batch.size());
+			for (T entry : batch) ops.add(WriteAheadLog.Op.add(encode(entry)));
+			log(ops);
+			for (int i = 0; i < ops.size(); i++) chunks.add(ChunkTable.UNWRITTEN, 0);
+			return;
+		}
+
+		dropDirectory(false);
+
+		List<byte[]> encoded = new ArrayList<>(batch.size());
+		int total = 0;
+		for (T entry : batch) {
+			byte[] data = encode(entry);
+			encoded.add(data);
+			total = Math.addExact(total, ChunkParser.chunkSize(data.length));
+		}
+
+		// every chunk into one buffer, then one write
+		ByteBuffer out = ByteBuffer.allocate(total);
+		long start = fileLength();
+		int[] sizes = new int[encoded.size()];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = parser.newChunk(ByteBuffer.wrap(encoded.get(i)), out);
+		}
+
+		updateCount(sizes.length);
+
+		writeAt(start, out.array());
+
+		long offset = start;
+		int i = 0;
+		for (T entry : batch) {
+			place(entry, offset, sizes[i]);
+			offset += sizes[i++];
+		}
+		afterWrite();
+
+	}
+
+	/**
+	 * Streams the entries of a store file without opening the store, decrypting one entry at a
+	 * time as the stream is consumed, for the {@code stream} methods of the stores.
+	 *
+	 * @param options Only the unlock cache TTL is used
+	 * @param decoder Decodes an entry, the plaintext is wiped afterwards
+	 */
+	protected static <T> Stream<T> stream(File file, String password, StoreOptions options, String magic, String magicV2, ParallelChunkLoader.EntryParser<T> decoder) throws IOException, GeneralSecurityException {
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		SecretKey masterKey = null;
+		ChunkParser parser = null;
+		try {
+			KdfParams kdf = KdfParams.readHeader(in, magic, magicV2);
+			byte[] salt = new byte[SALT_LENGTH];
+			in.readFully(salt);
+			masterKey = UnlockCache.unlock(file.toPath(), password, salt, kdf, options);
+			parser = new ChunkParser(masterKey);
+
+			ByteBuffer data = ByteBuffer.wrap(parser.decryptChunk(in));
+			byte[] verification = new byte[VERIFICATION_BYTES.length];
+			data.get(verification);
+			if (!Arrays.areEqual(verification, VERIFICATION_BYTES)) throw new StreamCorruptedException("Bad encryption verification (wrong password?)");
+			UnlockCache.remember(file.toPath(), password, salt, kdf, masterKey, options);
+
+			ChunkCursor<T> cursor = new ChunkCursor<>(in.getChannel(), parser, in.getFilePointer(), data.getLong(), plain -> decodeChunk(plain, decoder));
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(closer(cursor, parser, masterKey));
+		} catch (IOException | GeneralSecurityException | RuntimeException e) {
+			closer(in, parser, masterKey).run();
+			throw e;
+		}
+
+	}
+	// for stream(), closes the file and destroys the key, any of them may be null
+	private static Runnable closer(Closeable file, ChunkParser parser, SecretKey masterKey) {
+		return () -> {
+			if (parser != null) parser.destroy();
+			try {
+				if (masterKey != null) masterKey.destroy();
+			} catch (DestroyFailedException e) {
+				// disregard failed destroy, this is a close operation
+			}
+			try {
+				file.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+	}
+
+	/**
+	 * @return The entries as of this call, unmodifiable and unaffected by later changes
+	 * @see #snapshot()
+	 */
+	public List<T> getEntries() {
+		return snapshot();
+	}
+	/**
+	 * Gets the current entries without locking or copying anything. Each change to the store
+	 * publishes a new snapshot with a higher {@link Snapshot#version() version}, so comparing
+	 * versions tells whether anything changed in between.
+	 */
+	public Snapshot<T> snapshot() {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		return view;
+	}
+	/**
+	 * Gets the changes made to this store from now on, as batches of {@link StoreEvent}s. They are
+	 * delivered asynchronously, after the changes are written, and a slow subscriber never holds up
+	 * writes. Every subscriber is completed when the store is closed.
+	 * @see ChangeFeed
+	 */
+	public ChangeFeed<T> events() {
+		return events;
+	}
+	public synchronized void add(T entry) {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		beginWrite();
+		try {
+			newEntry(entry);
+			this.entries.add(entry);
+			index(entry);
+			view = view.with(entry);
+			events.added(entry);
+			compactIfNeeded();
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			endWrite();
+		}
+	}
+	/**
+	 * Adds several entries at once. Their chunks are appended with one write and the
+	 * entry count is only updated once, which is much faster than adding them one by one.
+	 */
+	public synchronized void addAll(Collection<? extends T> toAdd) {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		beginWrite();
+		try {
+			newEntries(toAdd);
+			this.entries.addAll(toAdd);
+			toAdd.forEach(this::index);
+			view = view.withAll(toAdd);
+			toAdd.forEach(events::added);
+			compactIfNeeded();
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			endWrite();
+		}
+	}
+	/**
+	 * Adds an entry on the store's async executor, see {@link StoreOptions#setAsyncExecutor}.
+	 * The future completes once {@link #add} has returned, so after the sync if there is one.
+	 */
+	public CompletableFuture<Void> addAsync(T entry) {
+		return async(() -> {
+			add(entry);
+			return null;
+		});
+	}
+	/**
+	 * Removes every entry {@code match} accepts from the store and its file.
+	 */
+	protected synchronized void removeAll(Predicate<? super T> match) {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		beginWrite();
+		try {
+			boolean removed = false;
+			try {
+				// back to front, so positions of entries still to check don't move, and the
+				// first match, the one that is indexed, goes last
+				for (int i = entries.size() - 1; i >= 0; i--) {
+					T entry = entries.get(i);
+					if (!match.test(entry)) continue;
+					// the file first, if that fails the entry stays everywhere
+					removeEntry(i);
+					entries.remove(i);
+					unindex(entry);
+					events.removed(entry);
+					removed = true;
+				}
+			} finally {
+				if (removed) view = view.replacedBy(entries);
+			}
+			if (removed) compactIfNeeded();
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			endWrite();
+		}
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		if (other instanceof ChunkStore<?> store && store.getClass() == getClass()) {
+			return store.getEntries().equals(this.getEntries()) && Arrays.areEqual(this.masterKey.getEncoded(), store.masterKey.getEncoded());
+		} else return false;
+	}
+
+	@Override
+	public synchronized int hashCode() {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		// use a true hash bc the key is sensitive
+		// however collisions aren't an issue so 32b will be fine
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA256");
+			digest.update(toBytes(entries.hashCode()));
+			digest.update(masterKey.getEncoded());
+			digest.update(toBytes(raf.hashCode()));
+			return ByteBuffer.wrap(digest.digest()).getInt();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		try {
+			writeDirectory();
+			if (options.getDurability() != Durability.SYNC) {
+				this.raf.getChannel().force(false);
+				if (wal != null) wal.getChannel().force(false);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			try {
+				this.masterKey.destroy();
+			} catch (DestroyFailedException e) {
+				// disregard failed destroy, this is a close operation
+			}
+			release();
+		}
+	}
+
+	@Override
+	public synchronized void destroy() throws DestroyFailedException {
+		if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
+		try {
+			this.masterKey.destroy();
+		} finally {
+			try {
+				release();
+			} catch (IOException e) {
+				throw new DestroyFailedException("Failed to close: " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	// lets go of everything even if some of it fails to close, the lock last so no other
+	// process writes while this one still has the files open
+	private void release() throws IOException {
+		this.closed = true;
+		try {
+			try {
+				this.raf.close();
+			} finally {
+				if (wal != null) wal.close();
+			}
+		} finally {
+			// no parser if opening failed while reading the file
+			if (this.parser != null) this.parser.destroy();
+			this.events.close();
+			if (this.shared != null) this.shared.close();
+		}
+	}
+
+}
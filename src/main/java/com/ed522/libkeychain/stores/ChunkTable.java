@@ -0,0 +1,161 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Offsets and sizes of consecutive chunks in a store file, in file order.
+ */
+public class ChunkTable {
+
+	/** Offset of a chunk that has not been written to the file yet, its size is 0 */
+	public static final long UNWRITTEN = -1;
+
+	private long[] offsets = new long[16];
+	private int[] sizes = new int[16];
+	private int count = 0;
+	private long end;
+
+	/**
+	 * @param start The offset right after the last chunk that is not part of this table
+	 */
+	public ChunkTable(long start) {
+		this.end = start;
+	}
+
+	/**
+	 * Finds the boundaries of {@code count} chunks starting at {@code start} by reading only their
+	 * length fields, without decrypting anything. Uses positional reads, so the channel's position
+	 * is left alone.
+	 */
+	public static ChunkTable scan(FileChannel channel, long start, long count) throws IOException {
+		return scan(channel, start, count, channel.size());
+	}
+
+	/**
+	 * Like {@link #scan(FileChannel, long, long)}, but takes every chunk from {@code start} up to {@code end}.
+	 */
+	public static ChunkTable scanTo(FileChannel channel, long start, long end) throws IOException {
+		return scan(channel, start, Long.MAX_VALUE, end);
+	}
+
+	private static ChunkTable scan(FileChannel channel, long start, long count, long end) throws IOException {
+
+		ChunkTable table = new ChunkTable(start);
+		ByteBuffer len = ByteBuffer.allocate(Integer.BYTES);
+		long offset = start;
+		for (long i = 0; i < count && offset < end; i++) {
+			len.clear();
+			readFully(channel, len, offset + ChunkParser.HEADER_LENGTH - Integer.BYTES);
+			int size = ChunkParser.HEADER_LENGTH + len.getInt(0);
+			if (size < ChunkParser.chunkSize(0) || offset + size > end) throw new StreamCorruptedException("Bad chunk length");
+			table.add(offset, size);
+			offset += size;
+		}
+		if (count != Long.MAX_VALUE && table.count() < count) throw new EOFException();
+		return table;
+
+	}
+
+	/**
+	 * Copies {@code count} bytes at {@code position} in {@code src} to {@code dst}'s current position.
+	 */
+	public static void transferFully(FileChannel src, long position, long count, FileChannel dst) throws IOException {
+		while (count > 0) {
+			long sent = src.transferTo(position, count, dst);
+			if (sent <= 0) throw new EOFException();
+			position += sent;
+			count -= sent;
+		}
+	}
+
+	/**
+	 * Reads from {@code channel} at {@code position} until {@code dst} is full.
+	 */
+	public static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int read = channel.read(dst, position);
+			if (read < 0) throw new EOFException();
+			position += read;
+		}
+	}
+
+	/**
+	 * Writes all of {@code src} to {@code channel} at {@code position}.
+	 */
+	public static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+		while (src.hasRemaining()) position += channel.write(src, position);
+	}
+
+	public void add(long offset, int size) {
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2);
+			sizes = Arrays.copyOf(sizes, count * 2);
+		}
+		offsets[count] = offset;
+		sizes[count] = size;
+		count++;
+		end = Math.max(end, offset + size);
+	}
+
+	/**
+	 * Drops a chunk from the table. Later chunks keep their offsets.
+	 */
+	public void remove(int index) {
+
+		if (index >= count) throw new IndexOutOfBoundsException(index);
+
+		System.arraycopy(offsets, index + 1, offsets, index, count - index - 1);
+		System.arraycopy(sizes, index + 1, sizes, index, count - index - 1);
+		count--;
+
+	}
+
+	/**
+	 * Finds a chunk by its offset. Offsets have to ascend, as they do in any table of chunks
+	 * read from or appended to a file.
+	 * @return The index of the chunk, or -1 if there is none at {@code offset}
+	 */
+	public int indexOf(long offset) {
+		int i = Arrays.binarySearch(offsets, 0, count, offset);
+		return i >= 0 ? i : -1;
+	}
+
+	public long offset(int index) {
+		if (index >= count) throw new IndexOutOfBoundsException(index);
+		return offsets[index];
+	}
+	public int size(int index) {
+		if (index >= count) throw new IndexOutOfBoundsException(index);
+		return sizes[index];
+	}
+	public int count() {
+		return count;
+	}
+	/**
+	 * @return Whether no chunk in the table is {@link #UNWRITTEN}
+	 */
+	public boolean allWritten() {
+		for (int i = 0; i < count; i++) if (offsets[i] == UNWRITTEN) return false;
+		return true;
+	}
+	/**
+	 * @return The sum of all chunk sizes
+	 */
+	public long totalSize() {
+		long total = 0;
+		for (int i = 0; i < count; i++) total += sizes[i];
+		return total;
+	}
+	/**
+	 * @return The offset right after the last chunk
+	 */
+	public long end() {
+		return end;
+	}
+
+}
@@ -0,0 +1,191 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * Writes a store file one entry at a time, so exporting never needs every entry in memory.
+ * The result is an ordinary store file that the store it was written for can open.
+ *
+ * The entry count in chunk0 comes first in the file. If it isn't given up front, chunk0 is
+ * written with {@link #UNKNOWN_COUNT}, and either filled in by {@link #finish()} when writing
+ * to a {@link File}, or left for the first store to open the file, which then counts the chunks
+ * up to the end of the file and writes the count itself.
+ *
+ * A writer says how its entries are encoded through {@link #encode}, see {@code KeystoreWriter}.
+ */
+public abstract class ChunkWriter<T> implements Closeable {
+
+	/** Count in chunk0 of a file whose entries run up to its end */
+	public static final long UNKNOWN_COUNT = ChunkStore.UNKNOWN_COUNT;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final OutputStream out;
+	// null unless writing to a file
+	private final FileChannel channel;
+	private final SecretKey masterKey;
+	private final ChunkParser parser;
+	private final long expected;
+	private final long chunk0Offset;
+	private final byte[] chunk0;
+	private long written = 0;
+	private boolean finished = false;
+	private boolean closed = false;
+
+	/**
+	 * Writes a store to a stream.
+	 *
+	 * @param options Only the key derivation parameters are used
+	 * @param count How many entries will be written, or {@link #UNKNOWN_COUNT}
+	 * @param magic The magic of files without key derivation parameters
+	 * @param magicV2 The magic of files with them
+	 */
+	protected ChunkWriter(OutputStream out, String password, StoreOptions options, long count, String magic, String magicV2) throws IOException, GeneralSecurityException {
+		this(out, null, password, options, count, magic, magicV2);
+	}
+
+	/**
+	 * Writes a store to a file, replacing anything in it. The count is filled in when finished.
+	 *
+	 * @param options Only the key derivation parameters are used
+	 */
+	protected ChunkWriter(File file, String password, StoreOptions options, String magic, String magicV2) throws IOException, GeneralSecurityException {
+		this(open(file), password, options, magic, magicV2);
+	}
+
+	private ChunkWriter(FileChannel channel, String password, StoreOptions options, String magic, String magicV2) throws IOException, GeneralSecurityException {
+		this(Channels.newOutputStream(channel), channel, password, options, UNKNOWN_COUNT, magic, magicV2);
+	}
+
+	private ChunkWriter(OutputStream out, FileChannel channel, String password, StoreOptions options, long count, String magic, String magicV2) throws IOException, GeneralSecurityException {
+
+		if (count < 0 && count != UNKNOWN_COUNT) throw new IllegalArgumentException("Count must not be negative");
+
+		this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+		this.channel = channel;
+		this.expected = count;
+
+		// same header as a store writes for a new file
+		KdfParams kdf = options.getKdf();
+		byte[] header = kdf.header(magic, magicV2);
+		byte[] salt = new byte[ChunkStore.SALT_LENGTH];
+		CryptoPool.nextBytes(salt);
+		this.out.write(header);
+		this.out.write(salt);
+		this.chunk0Offset = header.length + salt.length;
+
+		this.masterKey = KeyDerivation.derive(password, salt, kdf);
+		this.parser = new ChunkParser(masterKey);
+		this.chunk0 = parser.newChunk(ChunkStore.chunk0(count));
+		this.out.write(chunk0);
+
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Encodes an entry into the plaintext of its chunk.
+	 */
+	protected abstract byte[] encode(T entry) throws GeneralSecurityException;
+
+	/**
+	 * Encrypts and writes one entry.
+	 */
+	public void write(T entry) throws IOException, GeneralSecurityException {
+		if (finished) throw new IllegalStateException("Already finished");
+		if (written == expected) throw new IllegalStateException("More entries than the " + expected + " given");
+		out.write(parser.newChunk(encode(entry)));
+		written++;
+	}
+
+	/**
+	 * Writes every remaining entry of {@code entries}, in order.
+	 * @return How many were written
+	 */
+	public long writeAll(Iterator<? extends T> entries) throws IOException, GeneralSecurityException {
+		long start = written;
+		while (entries.hasNext()) write(entries.next());
+		return written - start;
+	}
+
+	/**
+	 * Writes every entry of {@code entries}, in encounter order. The stream is consumed one
+	 * entry at a time, but not closed.
+	 * @return How many were written
+	 */
+	public long writeAll(Stream<? extends T> entries) throws IOException, GeneralSecurityException {
+		return writeAll(entries.sequential().iterator());
+	}
+
+	/**
+	 * @return How many entries have been written
+	 */
+	public long count() {
+		return written;
+	}
+
+	/**
+	 * Flushes everything written, and when writing to a file, fills in the count and forces
+	 * it to disk. Nothing can be written afterwards. The stream is left open.
+	 *
+	 * @throws IllegalStateException If fewer entries were written than the count given
+	 */
+	public void finish() throws IOException, GeneralSecurityException {
+
+		if (finished) return;
+		if (expected != UNKNOWN_COUNT && written != expected) throw new IllegalStateException("Wrote " + written + " entries, not " + expected);
+		finished = true;
+		out.flush();
+
+		if (channel != null) {
+			ChunkTable.writeFully(channel, ByteBuffer.wrap(parser.updateChunk(chunk0, ChunkStore.chunk0(written))), chunk0Offset);
+			channel.force(true);
+		}
+
+	}
+
+	// the key of the store written, for the stream constructors of the stores
+	SecretKey getMasterKey() {
+		return masterKey;
+	}
+
+	/**
+	 * Finishes the store, closes the stream and destroys the key.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) return;
+		closed = true;
+		try {
+			finish();
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		} finally {
+			out.close();
+			parser.destroy();
+			try {
+				masterKey.destroy();
+			} catch (DestroyFailedException e) {
+				// disregard failed destroy, this is a close operation
+			}
+		}
+
+	}
+
+}
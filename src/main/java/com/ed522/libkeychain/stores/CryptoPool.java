@@ -0,0 +1,76 @@
+package com.ed522.libkeychain.stores;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+
+import com.ed522.libkeychain.util.Constants;
+
+/**
+ * Thread-confined {@link Cipher}, HKDF and {@link SecureRandom} instances for the chunk codec.
+ *
+ * Each thread gets one symmetric cipher per direction, one HKDF generator and one RNG on first use and
+ * keeps them, so encrypting or decrypting a chunk no longer does a provider lookup, builds
+ * a new digest or seeds a new RNG.
+ * Instances never cross threads, so no locking is needed.
+ */
+public final class CryptoPool {
+
+	// one per direction, so decrypting a chunk right after writing it never matches the previous init
+	private static final ThreadLocal<Cipher> ENCRYPTORS = new ThreadLocal<>();
+	private static final ThreadLocal<Cipher> DECRYPTORS = new ThreadLocal<>();
+	private static final ThreadLocal<HKDFBytesGenerator> HKDFS = ThreadLocal.withInitial(() -> new HKDFBytesGenerator(new SHA256Digest()));
+	private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(SecureRandom::new);
+
+	private CryptoPool() {}
+
+	/**
+	 * Gets this thread's symmetric cipher, initialized with the given parameters.
+	 * The returned cipher is only valid until the next call on the same thread.
+	 */
+	public static Cipher cipher(int mode, Key key, AlgorithmParameterSpec params) throws GeneralSecurityException {
+
+		ThreadLocal<Cipher> slot = mode == Cipher.ENCRYPT_MODE ? ENCRYPTORS : DECRYPTORS;
+		Cipher cipher = slot.get();
+		if (cipher == null) {
+			cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
+			slot.set(cipher);
+		}
+
+		try {
+			cipher.init(mode, key, params);
+		} catch (InvalidKeyException e) {
+			// ChaCha20-Poly1305 refuses to be reinitialized with the same key and nonce as
+			// the previous init, even for decryption (e.g. reading one chunk twice in a row).
+			// A fresh instance has no previous state; a genuinely bad key fails here again.
+			cipher = Cipher.getInstance(Constants.SYMMETRIC_CIPHER);
+			cipher.init(mode, key, params);
+			slot.set(cipher);
+		}
+		return cipher;
+
+	}
+
+	/**
+	 * Gets this thread's HKDF-SHA256 generator. It must be initialized before use.
+	 */
+	public static HKDFBytesGenerator hkdf() {
+		return HKDFS.get();
+	}
+
+	public static SecureRandom random() {
+		return RANDOMS.get();
+	}
+
+	public static void nextBytes(byte[] dst) {
+		RANDOMS.get().nextBytes(dst);
+	}
+
+}
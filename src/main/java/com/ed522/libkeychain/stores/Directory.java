@@ -0,0 +1,171 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chunk listing the name, type, fingerprint and chunk of every live entry in a store, so the
+ * store can be opened by decrypting it instead of every entry.
+ *
+ * The directory chunk is followed by a fixed-size trailer chunk pointing back at it, and both
+ * are the last chunks in the file when the directory is current. Appending anything moves the
+ * trailer away from the end and a removal overwrites it with a tombstone, so a stale directory
+ * is never found. Stores look for it on every open, even when not using it, so they know to do
+ * this. Both start with a negative marker like a {@link Tombstone}, and loaders skip them the
+ * same way.
+ *
+ * Structure:
+ * Directory
+ *  MARKER: 4B                  -2
+ *  COUNT: 4B                   number of entries
+ *  ENTRIES: Entry[]
+ * Entry
+ *  NAMELEN: 4B
+ *  NAME: byte[NAMELEN]         UTF-8
+ *  TYPE: 1B                    store specific
+ *  FPLEN: 1B
+ *  FINGERPRINT: byte[FPLEN]    may be empty
+ *  OFFSET: 8B                  of the entry's chunk
+ *  SIZE: 4B                    of the entry's chunk
+ * Trailer
+ *  MARKER: 4B                  -3
+ *  OFFSET: 8B                  of the directory chunk
+ *  CHUNKS: 8B                  the chunk count in chunk0 when written
+ */
+public final class Directory {
+
+	public static final int MARKER = -2;
+	public static final int TRAILER_MARKER = -3;
+	private static final int TRAILER_DATA_LENGTH = Integer.BYTES + 2 * Long.BYTES;
+	public static final int TRAILER_LENGTH = ChunkParser.chunkSize(TRAILER_DATA_LENGTH);
+
+	public record Entry(String name, byte type, byte[] fingerprint, long offset, int size) {}
+	/**
+	 * A directory as read from a file.
+	 * @param offset Where the directory chunk starts, everything from there on is the directory and trailer
+	 */
+	public record Listing(long offset, List<Entry> entries) {}
+
+	private Directory() {}
+
+	/**
+	 * @return Whether {@code plaintext} is a directory or trailer, and not an entry
+	 */
+	public static boolean isDirectory(byte[] plaintext) {
+		if (plaintext.length < Integer.BYTES) return false;
+		int marker = ByteBuffer.wrap(plaintext).getInt(0);
+		return marker == MARKER || marker == TRAILER_MARKER;
+	}
+
+	public static byte[] encode(List<Entry> entries) {
+
+		int size = 2 * Integer.BYTES;
+		for (Entry entry : entries) {
+			size += Integer.BYTES + entry.name().getBytes(StandardCharsets.UTF_8).length + 2 + entry.fingerprint().length + Long.BYTES + Integer.BYTES;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.putInt(MARKER);
+		buf.putInt(entries.size());
+		for (Entry entry : entries) {
+			byte[] name = entry.name().getBytes(StandardCharsets.UTF_8);
+			buf.putInt(name.length);
+			buf.put(name);
+			buf.put(entry.type());
+			buf.put((byte) entry.fingerprint().length);
+			buf.put(entry.fingerprint());
+			buf.putLong(entry.offset());
+			buf.putInt(entry.size());
+		}
+		return buf.array();
+
+	}
+
+	public static List<Entry> decode(byte[] plaintext) throws StreamCorruptedException {
+
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(plaintext);
+			if (buf.getInt() != MARKER) throw new StreamCorruptedException("Not a directory");
+			int count = buf.getInt();
+			List<Entry> entries = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[buf.getInt()];
+				buf.get(name);
+				byte type = buf.get();
+				byte[] fingerprint = new byte[Byte.toUnsignedInt(buf.get())];
+				buf.get(fingerprint);
+				entries.add(new Entry(new String(name, StandardCharsets.UTF_8), type, fingerprint, buf.getLong(), buf.getInt()));
+			}
+			return entries;
+		} catch (RuntimeException e) {
+			// underflow or a negative length
+			throw new StreamCorruptedException("Bad directory: " + e);
+		}
+
+	}
+
+	/**
+	 * @return The plaintext of a trailer pointing at a directory chunk at {@code offset}
+	 */
+	public static byte[] trailer(long offset, long chunkCount) {
+		return ByteBuffer.allocate(TRAILER_DATA_LENGTH).putInt(TRAILER_MARKER).putLong(offset).putLong(chunkCount).array();
+	}
+
+	/**
+	 * A tombstone of the trailer's size, to overwrite it in place.
+	 */
+	public static byte[] deadTrailer() {
+		return Tombstone.of(TRAILER_DATA_LENGTH);
+	}
+
+	/**
+	 * Reads the directory at the end of a store file, if it is current.
+	 * @param end Where the last chunk ends
+	 * @param start Where the first entry chunk starts
+	 * @param chunkCount The chunk count in chunk0
+	 * @return The directory, or null if the file does not end in a current directory
+	 */
+	public static Listing read(FileChannel channel, ChunkParser parser, long start, long end, long chunkCount) throws IOException {
+
+		long trailerOffset = end - TRAILER_LENGTH;
+		if (trailerOffset < start) return null;
+
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+		ChunkTable.readFully(channel, trailer, trailerOffset);
+		trailer.flip();
+		if (ChunkParser.dataLength(trailer) != TRAILER_DATA_LENGTH) return null;
+
+		ByteBuffer pointer = ByteBuffer.allocate(TRAILER_DATA_LENGTH);
+		try {
+			parser.decryptChunk(trailer, pointer);
+		} catch (GeneralSecurityException e) {
+			// the tail of some other chunk
+			return null;
+		}
+		pointer.flip();
+		if (pointer.getInt() != TRAILER_MARKER) return null;
+		long offset = pointer.getLong();
+		if (pointer.getLong() != chunkCount || offset < start || offset > trailerOffset - ChunkParser.chunkSize(0)) return null;
+
+		ByteBuffer chunk = ByteBuffer.allocate((int) (trailerOffset - offset));
+		ChunkTable.readFully(channel, chunk, offset);
+		chunk.flip();
+		if (ChunkParser.chunkSize(ChunkParser.dataLength(chunk)) != chunk.capacity()) return null;
+
+		byte[] plain = new byte[ChunkParser.dataLength(chunk)];
+		try {
+			parser.decryptChunk(chunk, ByteBuffer.wrap(plain));
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+		return new Listing(offset, decode(plain));
+
+	}
+
+}
@@ -0,0 +1,16 @@
+package com.ed522.libkeychain.stores;
+
+/**
+ * When changes to a store file are forced to disk.
+ * @see StoreOptions#setDurability(Durability)
+ */
+public enum Durability {
+
+	/** Every change is forced to disk before the call making it returns */
+	SYNC,
+	/** Changes are forced to disk together, a short delay after the first unsynced one */
+	GROUP,
+	/** Changes are only forced to disk by {@code sync()} and {@code close()} */
+	MANUAL
+
+}
@@ -0,0 +1,25 @@
+package com.ed522.libkeychain.stores;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the delayed syncs of stores opened with {@link Durability#GROUP}.
+ * One daemon thread is shared by all stores.
+ */
+public final class GroupCommit {
+
+	private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "libkeychain-group-commit");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private GroupCommit() {}
+
+	public static void schedule(Runnable sync, long delayMillis) {
+		SCHEDULER.schedule(sync, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Redo journal that makes a {@link WriteBatch} atomic.
+ *
+ * A commit writes every staged write into one record, encrypted as a single chunk, and forces it
+ * to disk before the store file is touched. The writes are then applied to the store, the store is
+ * forced and the journal is emptied. If the process dies in between, the record is replayed the next
+ * time the store is opened.
+ *
+ * Record:
+ *  MARKER: byte[]     the marker region of the store before the commit
+ *  COUNT: 4B
+ *  WRITES: {OFFSET: 8B, LEN: 4B, DATA: byte[LEN]}[COUNT]
+ *
+ * The marker region (the store's chunk0) is re-encrypted by every commit and written last, so it
+ * only matches the record while the record has not been fully applied. A stale record is never
+ * replayed, which is why emptying the journal needs no sync of its own.
+ */
+public final class Journal {
+
+	private Journal() {}
+
+	/**
+	 * Commits {@code batch} to {@code store}. The batch must rewrite the marker region.
+	 */
+	public static void commit(Path journal, FileChannel store, WriteBatch batch, ChunkParser parser, long markerOffset, int markerLength) throws IOException, GeneralSecurityException {
+
+		if (!batch.writes().containsKey(markerOffset)) throw new IllegalArgumentException("Batch does not rewrite the marker region");
+
+		byte[] marker = new byte[markerLength];
+		ChunkTable.readFully(store, ByteBuffer.wrap(marker), markerOffset);
+
+		int size = markerLength + Integer.BYTES;
+		for (byte[] data : batch.writes().values()) size = Math.addExact(size, Long.BYTES + Integer.BYTES + data.length);
+
+		ByteBuffer record = ByteBuffer.allocate(size);
+		record.put(marker);
+		record.putInt(batch.writes().size());
+		for (Map.Entry<Long, byte[]> write : batch.writes().entrySet()) {
+			record.putLong(write.getKey());
+			record.putInt(write.getValue().length);
+			record.put(write.getValue());
+		}
+
+		try (FileChannel out = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			ByteBuffer chunk = ByteBuffer.wrap(parser.newChunk(record.array()));
+			while (chunk.hasRemaining()) out.write(chunk);
+			// the commit point
+			out.force(true);
+
+			apply(store, batch.writes(), markerOffset);
+			out.truncate(0);
+
+		}
+
+	}
+
+	/**
+	 * Replays a committed record left in {@code journal}, if there is one that has not been applied yet.
+	 * A record that can't be decrypted is left alone, it is either torn or the key is wrong.
+	 * @return Whether anything was replayed
+	 */
+	public static boolean recover(Path journal, FileChannel store, ChunkParser parser, long markerOffset, int markerLength) throws IOException {
+
+		if (!Files.isRegularFile(journal) || Files.size(journal) == 0) return false;
+
+		ByteBuffer record;
+		try {
+			record = ByteBuffer.wrap(parser.decryptChunk(Files.readAllBytes(journal)));
+		} catch (GeneralSecurityException | RuntimeException e) {
+			return false;
+		}
+
+		byte[] expected = new byte[markerLength];
+		record.get(expected);
+		byte[] marker = new byte[markerLength];
+		if (store.size() < markerOffset + markerLength) return false;
+		ChunkTable.readFully(store, ByteBuffer.wrap(marker), markerOffset);
+		if (!Arrays.equals(expected, marker)) return false;
+
+		Map<Long, byte[]> writes = new TreeMap<>();
+		int count = record.getInt();
+		for (int i = 0; i < count; i++) {
+			long offset = record.getLong();
+			byte[] data = new byte[record.getInt()];
+			record.get(data);
+			writes.put(offset, data);
+		}
+
+		apply(store, writes, markerOffset);
+		try (FileChannel out = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+			out.truncate(0);
+		}
+		return true;
+
+	}
+
+	private static void apply(FileChannel store, Map<Long, byte[]> writes, long markerOffset) throws IOException {
+
+		for (Map.Entry<Long, byte[]> write : writes.entrySet()) {
+			if (write.getKey() != markerOffset) writeFully(store, write.getValue(), write.getKey());
+		}
+		// last, see the class description
+		writeFully(store, writes.get(markerOffset), markerOffset);
+		store.force(false);
+
+	}
+
+	private static void writeFully(FileChannel channel, byte[] data, long position) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining()) position += channel.write(buf, position);
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.ed522.libkeychain.util.Constants;
+
+/**
+ * How a store's master key is derived from its password. Stored in plain in the file header
+ * so it is known before the key is.
+ *
+ * Files with {@link #DEFAULT} keep the original header with no parameters, so older versions
+ * can still open them. Any other parameters use the second header version:
+ * File
+ *  MAGIC: 4B                   "LKK2" or "LKA2"
+ *  ALGORITHM: 1B               see Algorithm
+ *  ITERATIONS: 4B              PBKDF2 iterations or Argon2 passes
+ *  MEMORY: 4B                  Argon2 memory in KiB, 0 for PBKDF2
+ *  PARALLELISM: 4B             Argon2 lanes, 1 for PBKDF2
+ *  SALT: 32B
+ *  ...
+ *
+ * @param memoryKiB Only used by Argon2id
+ * @param parallelism Only used by Argon2id
+ */
+public record KdfParams(Algorithm algorithm, int iterations, int memoryKiB, int parallelism) {
+
+	public enum Algorithm {
+		PBKDF2_HMAC_SHA256((byte) 0),
+		ARGON2ID((byte) 1);
+
+		private final byte id;
+
+		Algorithm(byte id) {
+			this.id = id;
+		}
+		public byte getID() {
+			return id;
+		}
+		public static Algorithm forID(byte id) {
+			for (Algorithm algorithm : values()) {
+				if (algorithm.id == id) return algorithm;
+			}
+			return null;
+		}
+	}
+
+	public static final int ENCODED_LENGTH = 1 + 3 * Integer.BYTES;
+	/**
+	 * What every store used before parameters were configurable.
+	 */
+	public static final KdfParams DEFAULT = pbkdf2(Constants.PBKDF2_ITERATIONS);
+
+	// 4 GiB, so a corrupt header can't ask for any more
+	private static final int MAX_MEMORY_KIB = 4 << 20;
+	private static final int MAX_PARALLELISM = 255;
+
+	public KdfParams {
+		if (algorithm == null) throw new IllegalArgumentException("No algorithm");
+		if (iterations < 1) throw new IllegalArgumentException("Iterations must be positive");
+		if (algorithm == Algorithm.ARGON2ID) {
+			if (parallelism < 1 || parallelism > MAX_PARALLELISM) throw new IllegalArgumentException("Parallelism must be between 1 and " + MAX_PARALLELISM);
+			// Argon2 needs 8 blocks of 1 KiB per lane
+			if (memoryKiB < 8 * parallelism || memoryKiB > MAX_MEMORY_KIB) throw new IllegalArgumentException("Memory must be between 8 KiB per lane and 4 GiB");
+		} else if (memoryKiB != 0 || parallelism != 1) {
+			throw new IllegalArgumentException("PBKDF2 takes no memory or parallelism");
+		}
+	}
+
+	public static KdfParams pbkdf2(int iterations) {
+		return new KdfParams(Algorithm.PBKDF2_HMAC_SHA256, iterations, 0, 1);
+	}
+	public static KdfParams argon2id(int iterations, int memoryKiB, int parallelism) {
+		return new KdfParams(Algorithm.ARGON2ID, iterations, memoryKiB, parallelism);
+	}
+
+	/**
+	 * @return Whether files with these parameters use the original header
+	 */
+	public boolean isDefault() {
+		return DEFAULT.equals(this);
+	}
+
+	public byte[] encode() {
+		return ByteBuffer.allocate(ENCODED_LENGTH).put(algorithm.getID()).putInt(iterations).putInt(memoryKiB).putInt(parallelism).array();
+	}
+
+	/**
+	 * @return {@code magic} for the default parameters, otherwise {@code v2Magic} followed by these parameters
+	 */
+	public byte[] header(String magic, String v2Magic) {
+		if (isDefault()) return magic.getBytes(StandardCharsets.US_ASCII);
+		return ByteBuffer.allocate(4 + ENCODED_LENGTH).put(v2Magic.getBytes(StandardCharsets.US_ASCII)).put(encode()).array();
+	}
+
+	/**
+	 * Reads the start of a store header written by {@link #header}, up to the salt.
+	 */
+	public static KdfParams readHeader(DataInput in, String magic, String v2Magic) throws IOException {
+
+		byte[] magicIn = new byte[4];
+		in.readFully(magicIn);
+		String read = new String(magicIn, StandardCharsets.US_ASCII);
+		if (read.equals(magic)) return DEFAULT;
+		if (!read.equals(v2Magic)) throw new StreamCorruptedException("Bad magic number (wrong file?)");
+
+		byte[] encoded = new byte[ENCODED_LENGTH];
+		in.readFully(encoded);
+		return decode(encoded);
+
+	}
+
+	public static KdfParams decode(byte[] encoded) throws StreamCorruptedException {
+
+		ByteBuffer buf = ByteBuffer.wrap(encoded);
+		Algorithm algorithm = Algorithm.forID(buf.get());
+		if (algorithm == null) throw new StreamCorruptedException("Unknown key derivation algorithm");
+		try {
+			return new KdfParams(algorithm, buf.getInt(), buf.getInt(), buf.getInt());
+		} catch (IllegalArgumentException e) {
+			throw new StreamCorruptedException("Bad key derivation parameters: " + e.getMessage());
+		}
+
+	}
+
+}
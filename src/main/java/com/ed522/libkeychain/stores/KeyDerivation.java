@@ -0,0 +1,164 @@
+package com.ed522.libkeychain.stores;
+
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import com.ed522.libkeychain.util.Constants;
+
+/**
+ * Derives store master keys from passwords, and keeps track of how long that takes.
+ *
+ * Derivation is deliberately slow, so each store does it once per open or create and keeps the key.
+ * The metrics cover every derivation in the process since the last {@link #resetMetrics()}, but not
+ * the trial runs of {@link #calibrate}.
+ */
+public final class KeyDerivation {
+
+	private static final LongAdder COUNT = new LongAdder();
+	private static final LongAdder TOTAL_NANOS = new LongAdder();
+	private static final AtomicLong LAST_NANOS = new AtomicLong();
+
+	// floors for calibration, below these a slow machine gets them anyway
+	private static final int MIN_PBKDF2_ITERATIONS = 1_000;
+	private static final int MIN_ARGON2_MEMORY_KIB = 8 << 10;
+	private static final int ARGON2_MEMORY_KIB = 64 << 10;
+	private static final int PBKDF2_TRIAL_ITERATIONS = 20_000;
+	private static final byte[] TRIAL_SALT = new byte[32];
+
+	private KeyDerivation() {}
+
+	/**
+	 * Derives the 256-bit master key for {@code password} and {@code salt}, with the default parameters.
+	 */
+	public static SecretKey derive(String password, byte[] salt) throws GeneralSecurityException {
+		return derive(password, salt, KdfParams.DEFAULT);
+	}
+
+	/**
+	 * Derives the 256-bit master key for {@code password} and {@code salt}.
+	 */
+	public static SecretKey derive(String password, byte[] salt, KdfParams params) throws GeneralSecurityException {
+
+		long start = System.nanoTime();
+		try {
+			return generate(password, salt, params);
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			COUNT.increment();
+			TOTAL_NANOS.add(elapsed);
+			LAST_NANOS.set(elapsed);
+		}
+
+	}
+
+	private static SecretKey generate(String password, byte[] salt, KdfParams params) throws GeneralSecurityException {
+
+		char[] chars = password.toCharArray();
+		try {
+			if (params.algorithm() == KdfParams.Algorithm.PBKDF2_HMAC_SHA256) {
+				PBEKeySpec spec = new PBEKeySpec(chars, salt, params.iterations(), Constants.SYMMETRIC_KEY_LENGTH_BITS);
+				try {
+					return SecretKeyFactory.getInstance(Constants.PBKDF_MODE).generateSecret(spec);
+				} finally {
+					spec.clearPassword();
+				}
+			}
+
+			Argon2BytesGenerator generator = new Argon2BytesGenerator();
+			generator.init(new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+				.withVersion(Argon2Parameters.ARGON2_VERSION_13)
+				.withSalt(salt)
+				.withIterations(params.iterations())
+				.withMemoryAsKB(params.memoryKiB())
+				.withParallelism(params.parallelism())
+				.build());
+			byte[] raw = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
+			generator.generateBytes(chars, raw);
+			try {
+				return new SecretKeySpec(raw, "Argon2id");
+			} finally {
+				Arrays.fill(raw, (byte) 0);
+			}
+		} finally {
+			Arrays.fill(chars, '\0');
+		}
+
+	}
+
+	/**
+	 * Picks parameters that take about {@code target} to derive a key with on this machine,
+	 * by timing trial derivations. This takes a few times {@code target} itself.
+	 *
+	 * PBKDF2 only scales its iterations. Argon2id uses 64 MiB in one lane and scales its passes,
+	 * or if a single pass is already too slow, halves the memory down to 8 MiB.
+	 * @return The calibrated parameters, never weaker than 1000 PBKDF2 iterations or one pass over 8 MiB
+	 */
+	public static KdfParams calibrate(KdfParams.Algorithm algorithm, Duration target) throws GeneralSecurityException {
+
+		if (target.isNegative() || target.isZero()) throw new IllegalArgumentException("Target must be positive");
+		long targetNanos = target.toNanos();
+
+		if (algorithm == KdfParams.Algorithm.PBKDF2_HMAC_SHA256) {
+			KdfParams trial = KdfParams.pbkdf2(PBKDF2_TRIAL_ITERATIONS);
+			// the first run also pays for class loading and warm up
+			time(trial);
+			long elapsed = time(trial);
+			long iterations = (long) ((double) PBKDF2_TRIAL_ITERATIONS * targetNanos / elapsed);
+			return KdfParams.pbkdf2((int) Math.min(Integer.MAX_VALUE, Math.max(MIN_PBKDF2_ITERATIONS, iterations)));
+		}
+
+		int memory = ARGON2_MEMORY_KIB;
+		time(KdfParams.argon2id(1, MIN_ARGON2_MEMORY_KIB, 1));
+		long elapsed = time(KdfParams.argon2id(1, memory, 1));
+		while (elapsed > targetNanos && memory > MIN_ARGON2_MEMORY_KIB) {
+			memory /= 2;
+			elapsed = time(KdfParams.argon2id(1, memory, 1));
+		}
+		return KdfParams.argon2id((int) Math.min(Integer.MAX_VALUE, Math.max(1, targetNanos / elapsed)), memory, 1);
+
+	}
+
+	private static long time(KdfParams params) throws GeneralSecurityException {
+		long start = System.nanoTime();
+		generate("calibration", TRIAL_SALT, params);
+		// never 0, it gets divided by
+		return Math.max(1, System.nanoTime() - start);
+	}
+
+	/**
+	 * @return The number of keys derived
+	 */
+	public static long getCount() {
+		return COUNT.sum();
+	}
+	/**
+	 * @return The time spent deriving keys, in nanoseconds
+	 */
+	public static long getTotalNanos() {
+		return TOTAL_NANOS.sum();
+	}
+	/**
+	 * @return How long the latest derivation took, in nanoseconds
+	 */
+	public static long getLastNanos() {
+		return LAST_NANOS.get();
+	}
+
+	public static void resetMetrics() {
+		COUNT.reset();
+		TOTAL_NANOS.reset();
+		LAST_NANOS.set(0);
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Walks the chunks of a store file over a read-only memory mapping.
+ *
+ * Chunks are handed out as slices of the mapping, so the ciphertext is never copied
+ * before it reaches the cipher. The mapping is released by the garbage collector.
+ */
+public class MappedChunkReader {
+
+	private final MappedByteBuffer map;
+
+	/**
+	 * Maps {@code channel} and starts reading at {@code offset}.
+	 * @throws IOException if the file is larger than 2 GiB or cannot be mapped
+	 */
+	public MappedChunkReader(FileChannel channel, long offset) throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) throw new IOException("File too large to map");
+		this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		this.map.position((int) offset);
+	}
+
+	public long position() {
+		return map.position();
+	}
+	public boolean hasRemaining() {
+		return map.hasRemaining();
+	}
+
+	/**
+	 * @return A slice covering the whole chunk at the current position, which is then advanced past it
+	 */
+	public ByteBuffer nextChunk() throws StreamCorruptedException {
+
+		if (map.remaining() < ChunkParser.HEADER_LENGTH) throw new StreamCorruptedException("Truncated chunk header");
+
+		int size = ChunkParser.chunkSize(ChunkParser.dataLength(map));
+		if (size < ChunkParser.chunkSize(0) || size > map.remaining()) throw new StreamCorruptedException("Bad chunk length");
+
+		ByteBuffer chunk = map.slice(map.position(), size);
+		map.position(map.position() + size);
+		return chunk;
+
+	}
+
+	/**
+	 * @return A slice covering {@code size} bytes at {@code offset}. Does not move the reader, safe to call from several threads.
+	 */
+	public ByteBuffer chunkAt(long offset, int size) {
+		return map.slice((int) offset, size);
+	}
+
+	/**
+	 * Finds the boundaries of the next {@code count} chunks and advances past them, without decrypting anything.
+	 */
+	public ChunkTable scan(long count) throws StreamCorruptedException {
+		ChunkTable table = new ChunkTable(map.position());
+		for (long i = 0; i < count; i++) {
+			long offset = map.position();
+			table.add(offset, nextChunk().remaining());
+		}
+		return table;
+	}
+
+	/**
+	 * Decrypts the next chunk straight from the mapping.
+	 */
+	public byte[] decryptNext(ChunkParser parser) throws IOException, GeneralSecurityException {
+
+		ByteBuffer chunk = nextChunk();
+		byte[] out = new byte[ChunkParser.dataLength(chunk)];
+		parser.decryptChunk(chunk, ByteBuffer.wrap(out));
+		return out;
+
+	}
+
+}
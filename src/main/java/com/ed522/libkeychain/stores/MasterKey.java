@@ -0,0 +1,60 @@
+package com.ed522.libkeychain.stores;
+
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/**
+ * A raw copy of a master key that really is wiped by {@link #destroy()},
+ * unlike a {@link javax.crypto.spec.SecretKeySpec}.
+ */
+final class MasterKey implements SecretKey {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String algorithm;
+	// null once destroyed
+	private transient byte[] raw;
+
+	MasterKey(SecretKey key) {
+		this.algorithm = key.getAlgorithm();
+		this.raw = key.getEncoded();
+	}
+	private MasterKey(String algorithm, byte[] raw) {
+		this.algorithm = algorithm;
+		this.raw = raw;
+	}
+
+	/**
+	 * @return An independent copy, or null if this key has been destroyed
+	 */
+	synchronized MasterKey copy() {
+		return raw != null ? new MasterKey(algorithm, raw.clone()) : null;
+	}
+
+	@Override
+	public String getAlgorithm() {
+		return algorithm;
+	}
+	@Override
+	public String getFormat() {
+		return "RAW";
+	}
+	@Override
+	public synchronized byte[] getEncoded() {
+		if (raw == null) throw new IllegalStateException("Key has been destroyed");
+		return raw.clone();
+	}
+
+	@Override
+	public synchronized void destroy() {
+		if (raw == null) return;
+		Arrays.fill(raw, (byte) 0);
+		raw = null;
+	}
+	@Override
+	public synchronized boolean isDestroyed() {
+		return raw == null;
+	}
+
+}
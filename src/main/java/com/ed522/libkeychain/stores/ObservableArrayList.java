@@ -5,6 +5,11 @@ import java.util.Collection;
 import java.util.List;
 import java.util.function.Consumer;
 
+/**
+ * @deprecated The stores no longer use this. Their routines ran inside every change, so a slow
+ * one held up the writer; stores now publish changes through a {@link ChangeFeed} instead.
+ */
+@Deprecated
 public class ObservableArrayList<T> extends ArrayList<T> {
 	
 	private final transient List<Consumer<T>> onAdd;
@@ -0,0 +1,131 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decrypts and parses a known set of chunks on a {@link ForkJoinPool}.
+ *
+ * Every chunk has its own salt and therefore its own block key, so chunks can be
+ * handled independently once their boundaries are known (see {@link ChunkTable#scan}).
+ * Results keep the order of the table.
+ */
+public class ParallelChunkLoader {
+
+	/** Chunks handled by one task before it stops splitting */
+	private static final int THRESHOLD = 16;
+
+	@FunctionalInterface
+	public interface EntryParser<T> {
+		T parse(byte[] plaintext) throws IOException, GeneralSecurityException;
+	}
+
+	private final ChunkParser parser;
+	private final ForkJoinPool pool;
+
+	public ParallelChunkLoader(ChunkParser parser, ForkJoinPool pool) {
+		this.parser = parser;
+		this.pool = pool;
+	}
+
+	/**
+	 * Loads every chunk in {@code table}.
+	 * @param channel The channel to read from with positional reads, used if {@code mapped} is null
+	 * @param mapped A mapping of the same file, or null
+	 */
+	public <T> List<T> load(ChunkTable table, FileChannel channel, MappedChunkReader mapped, EntryParser<T> entryParser) throws IOException, GeneralSecurityException {
+
+		Object[] results = new Object[table.count()];
+
+		try {
+			pool.invoke(new LoadTask<>(table, channel, mapped, entryParser, results, 0, table.count()));
+		} catch (UncheckedIOException | IllegalStateException e) {
+			// the task's wrapper, which may have been wrapped again when crossing threads
+			for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException io) throw io;
+				if (cause instanceof GeneralSecurityException gse) throw gse;
+			}
+			throw e;
+		}
+
+		@SuppressWarnings("unchecked") // only ever filled with T
+		List<T> list = (List<T>) new ArrayList<>(Arrays.asList(results));
+		return list;
+
+	}
+
+	private byte[] decrypt(ChunkTable table, int index, FileChannel channel, MappedChunkReader mapped) throws IOException, GeneralSecurityException {
+
+		ByteBuffer chunk;
+		if (mapped != null) {
+			chunk = mapped.chunkAt(table.offset(index), table.size(index));
+		} else {
+			chunk = ByteBuffer.allocate(table.size(index));
+			ChunkTable.readFully(channel, chunk, table.offset(index));
+			chunk.flip();
+		}
+
+		byte[] out = new byte[ChunkParser.dataLength(chunk)];
+		parser.decryptChunk(chunk, ByteBuffer.wrap(out));
+		return out;
+
+	}
+
+	private final class LoadTask<T> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient ChunkTable table;
+		private final transient FileChannel channel;
+		private final transient MappedChunkReader mapped;
+		private final transient EntryParser<T> entryParser;
+		private final transient Object[] results;
+		private final int from;
+		private final int to;
+
+		LoadTask(ChunkTable table, FileChannel channel, MappedChunkReader mapped, EntryParser<T> entryParser, Object[] results, int from, int to) {
+			this.table = table;
+			this.channel = channel;
+			this.mapped = mapped;
+			this.entryParser = entryParser;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > THRESHOLD) {
+				int mid = (from + to) >>> 1;
+				invokeAll(
+					new LoadTask<>(table, channel, mapped, entryParser, results, from, mid),
+					new LoadTask<>(table, channel, mapped, entryParser, results, mid, to)
+				);
+				return;
+			}
+
+			for (int i = from; i < to; i++) {
+				try {
+					results[i] = entryParser.parse(decrypt(table, i, channel, mapped));
+				} catch (IOException e) {
+					// checked exceptions can't leave a fork/join task, load() unwraps them
+					throw new UncheckedIOException(e);
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,216 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Lets several processes write the same store file, through a lock file next to it
+ * ({@code <file>.lock}). Used by stores opened with {@link StoreOptions#setShared}.
+ *
+ * A store takes the lock for every write. Holding it, it first catches up with what other
+ * processes changed, then writes, and when it lets go bumps the generation, so the others can
+ * tell the file changed by reading 8 bytes. Chunks are only ever appended, overwritten in place
+ * with tombstones, or moved by a compaction that replaces the whole file, so the lock file
+ * records just enough to catch up on each of these without reading the chunks that didn't change.
+ * LockFile
+ *  GENERATION: 8B              bumped by every write to the store file
+ *  REWRITES: 8B                bumped by every compaction, which replaces the store file
+ *  REMOVED: 8B[]               offsets of chunks tombstoned since the last compaction
+ *
+ * The lock is on a byte far past the end of the lock file, so reading it is never blocked.
+ * Within this process, stores on the same file also wait for each other.
+ */
+public final class SharedFile implements Closeable {
+
+	private static final int HEADER_LENGTH = 2 * Long.BYTES;
+	private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+	// FileLocks are held per process, so stores in this one need their own lock on top
+	private static final Map<Path, Semaphore> LOCAL = new ConcurrentHashMap<>();
+
+	/**
+	 * What other processes changed since the last look.
+	 * @param rewritten Whether the store file was replaced, moving every chunk
+	 * @param removed Offsets of chunks tombstoned, if not rewritten
+	 */
+	public record Changes(boolean rewritten, long[] removed) {}
+
+	private final FileChannel channel;
+	private final Semaphore local;
+	private FileLock lock = null;
+	// nested holds of the lock by the store, only the outermost takes and releases it
+	private int depth = 0;
+	// as of the last look or write
+	private long generation;
+	private long rewrites;
+	private long removedSeen;
+	// staged until the lock is let go
+	private long[] removed = new long[8];
+	private int removedCount = 0;
+	private boolean written = false;
+	private boolean rewritten = false;
+
+	public SharedFile(Path path) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.local = LOCAL.computeIfAbsent(path.toRealPath(), p -> new Semaphore(1));
+	}
+
+	/**
+	 * Takes the writer lock, waiting for any other process or store holding it. Nests.
+	 */
+	public synchronized void lock() throws IOException {
+
+		if (depth++ > 0) return;
+		local.acquireUninterruptibly();
+		try {
+			lock = channel.lock(LOCK_POSITION, 1, false);
+		} catch (IOException | RuntimeException e) {
+			depth--;
+			local.release();
+			throw e;
+		}
+
+	}
+
+	/**
+	 * Lets go of the lock taken by the matching {@link #lock()}. The outermost one records what
+	 * was written while holding it.
+	 */
+	public synchronized void unlock() throws IOException {
+
+		if (depth == 0) throw new IllegalStateException("Not locked");
+		if (--depth > 0) return;
+		try {
+			if (written) publish();
+		} finally {
+			lock.release();
+			lock = null;
+			local.release();
+		}
+
+	}
+
+	private void publish() throws IOException {
+
+		long count;
+		if (rewritten) {
+			// the offsets are all gone with the old file
+			channel.truncate(HEADER_LENGTH);
+			rewrites++;
+			count = 0;
+		} else {
+			count = removedSeen(channel.size());
+		}
+		ByteBuffer records = ByteBuffer.allocate(removedCount * Long.BYTES);
+		for (int i = 0; i < removedCount; i++) records.putLong(removed[i]);
+		ChunkTable.writeFully(channel, records.flip(), HEADER_LENGTH + count * Long.BYTES);
+		// the generation last, it's what the others look at
+		generation++;
+		ChunkTable.writeFully(channel, ByteBuffer.allocate(HEADER_LENGTH).putLong(generation).putLong(rewrites).flip(), 0);
+
+		removedSeen = count + removedCount;
+		removedCount = 0;
+		written = false;
+		rewritten = false;
+
+	}
+
+	private static long removedSeen(long size) {
+		return Math.max(0, size - HEADER_LENGTH) / Long.BYTES;
+	}
+
+	/**
+	 * Notes that the store file was written to while holding the lock.
+	 */
+	public synchronized void written() {
+		written = true;
+	}
+	/**
+	 * Notes that the chunk at {@code offset} was tombstoned while holding the lock.
+	 */
+	public synchronized void removed(long offset) {
+		if (removedCount == removed.length) removed = Arrays.copyOf(removed, removedCount * 2);
+		removed[removedCount++] = offset;
+		written = true;
+	}
+	/**
+	 * Notes that the store file was replaced while holding the lock.
+	 */
+	public synchronized void rewritten() {
+		removedCount = 0;
+		rewritten = true;
+		written = true;
+	}
+
+	/**
+	 * Reads what other processes changed since the last call, must hold the lock.
+	 * @return The changes, or null if there were none
+	 */
+	public synchronized Changes changes() throws IOException {
+
+		if (depth == 0) throw new IllegalStateException("Not locked");
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		if (channel.size() >= HEADER_LENGTH) ChunkTable.readFully(channel, header, 0);
+		long currentGeneration = header.getLong(0);
+		long currentRewrites = header.getLong(Long.BYTES);
+		if (currentGeneration == generation) return null;
+
+		long count = removedSeen(channel.size());
+		boolean moved = currentRewrites != rewrites;
+		long[] offsets = new long[0];
+		if (!moved && count > removedSeen) {
+			ByteBuffer records = ByteBuffer.allocate((int) ((count - removedSeen) * Long.BYTES));
+			ChunkTable.readFully(channel, records, HEADER_LENGTH + removedSeen * Long.BYTES);
+			offsets = new long[(int) (count - removedSeen)];
+			records.flip().asLongBuffer().get(offsets);
+		}
+
+		generation = currentGeneration;
+		rewrites = currentRewrites;
+		removedSeen = count;
+		return new Changes(moved, offsets);
+
+	}
+
+	/**
+	 * Whether another process wrote to the store file since the last look, without taking the
+	 * lock. Only reads the generation.
+	 */
+	public synchronized boolean isStale() throws IOException {
+		ByteBuffer current = ByteBuffer.allocate(Long.BYTES);
+		if (channel.read(current, 0) < Long.BYTES) return generation != 0;
+		return current.getLong(0) != generation;
+	}
+
+	/**
+	 * @return The salt and IV of the chunk at {@code offset}, which tell it apart from every other chunk
+	 */
+	public static ByteBuffer chunkId(FileChannel channel, long offset) throws IOException {
+		ByteBuffer id = ByteBuffer.allocate(ChunkParser.HEADER_LENGTH - Integer.BYTES);
+		ChunkTable.readFully(channel, id, offset);
+		return id.flip();
+	}
+
+	/**
+	 * Lets go of the lock if held, dropping anything staged, and closes the lock file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (lock != null) {
+			lock = null;
+			depth = 0;
+			local.release();
+		}
+		channel.close();
+	}
+
+}
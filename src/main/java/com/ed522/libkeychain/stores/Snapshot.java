@@ -0,0 +1,117 @@
+package com.ed522.libkeychain.stores;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable list of a store's entries as they were at one point, numbered by a version that
+ * goes up with every change. Stores publish a new one after each write, so reading the entries
+ * is just reading a field, and a snapshot never changes after being handed out.
+ *
+ * Appending shares the backing array with the snapshot appended to. Each snapshot only reads the
+ * slots below its own size, so the next one can fill the slots after them without copying. Only
+ * the first append to a snapshot may claim those slots, any other append or removal copies.
+ */
+public final class Snapshot<T> extends AbstractList<T> implements RandomAccess {
+
+	private static final int MIN_CAPACITY = 16;
+	private static final Snapshot<?> EMPTY = new Snapshot<>(new Block(0), 0, 0);
+
+	// the array shared by snapshots appending into it, and how many slots of it are taken
+	private static final class Block {
+		final Object[] items;
+		final AtomicInteger used = new AtomicInteger();
+
+		Block(int capacity) {
+			this.items = new Object[capacity];
+		}
+	}
+
+	private final Block block;
+	private final int size;
+	private final long version;
+
+	private Snapshot(Block block, int size, long version) {
+		this.block = block;
+		this.size = size;
+		this.version = version;
+	}
+
+	@SuppressWarnings("unchecked") // holds nothing
+	public static <T> Snapshot<T> empty() {
+		return (Snapshot<T>) EMPTY;
+	}
+
+	/**
+	 * @return A snapshot of {@code items} with version 0
+	 */
+	public static <T> Snapshot<T> of(Collection<? extends T> items) {
+		return copy(items, 0);
+	}
+
+	private static <T> Snapshot<T> copy(Collection<? extends T> items, long version) {
+		Object[] array = items.toArray();
+		Block block = new Block(Math.max(MIN_CAPACITY, array.length + (array.length >> 1)));
+		System.arraycopy(array, 0, block.items, 0, array.length);
+		block.used.set(array.length);
+		return new Snapshot<>(block, array.length, version);
+	}
+
+	/**
+	 * @return This snapshot with {@code item} appended, one version later
+	 */
+	public Snapshot<T> with(T item) {
+		Block target = claim(1);
+		target.items[size] = item;
+		return new Snapshot<>(target, size + 1, version + 1);
+	}
+
+	/**
+	 * @return This snapshot with every item of {@code items} appended, one version later
+	 */
+	public Snapshot<T> withAll(Collection<? extends T> items) {
+		Object[] array = items.toArray();
+		Block target = claim(array.length);
+		System.arraycopy(array, 0, target.items, size, array.length);
+		return new Snapshot<>(target, size + array.length, version + 1);
+	}
+
+	/**
+	 * @return A snapshot of {@code items}, one version later than this one
+	 */
+	public Snapshot<T> replacedBy(Collection<? extends T> items) {
+		return copy(items, version + 1);
+	}
+
+	// the block to write count more items into, after this snapshot's own
+	private Block claim(int count) {
+		if (size + count <= block.items.length && block.used.compareAndSet(size, size + count)) return block;
+		Block grown = new Block(Math.max(MIN_CAPACITY, 2 * (size + count)));
+		System.arraycopy(block.items, 0, grown.items, 0, size);
+		grown.used.set(size + count);
+		return grown;
+	}
+
+	/**
+	 * @return How many changes the store had seen when this was taken
+	 */
+	public long version() {
+		return version;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked") // only Ts are stored
+	public T get(int index) {
+		Objects.checkIndex(index, size);
+		return (T) block.items[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,26 @@
+package com.ed522.libkeychain.stores;
+
+/**
+ * One change to a store, as delivered by its {@link ChangeFeed}.
+ *
+ * @param sequence Numbers the changes of one store from 1, in the order they were made
+ * @param entry The entry in the store after the change, null for a removal
+ * @param previous The entry in the store before the change, null for an addition
+ */
+public record StoreEvent<T>(Kind kind, long sequence, T entry, T previous) {
+
+	public enum Kind {
+		ADD,
+		REMOVE,
+		/** A removal followed by an addition of an entry with the same key, coalesced into one event */
+		REPLACE
+	}
+
+	public static <T> StoreEvent<T> added(long sequence, T entry) {
+		return new StoreEvent<>(Kind.ADD, sequence, entry, null);
+	}
+	public static <T> StoreEvent<T> removed(long sequence, T entry) {
+		return new StoreEvent<>(Kind.REMOVE, sequence, null, entry);
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the asynchronous store operations ({@code openAsync}, {@code addAsync} and so on), so the
+ * threads asking for them never wait on key derivation, encryption or syncing to disk.
+ *
+ * By default they share one pool of daemon threads, one per processor, with a queue of
+ * {@value #QUEUE_CAPACITY} operations. Once the queue is full, further operations fail straight
+ * away with a {@link RejectedExecutionException} instead of blocking the caller.
+ * See {@link StoreOptions#setAsyncExecutor} to use another executor.
+ *
+ * Operations submitted one after the other may run at the same time, and so in any order.
+ * Chain the futures of operations that depend on each other.
+ */
+public final class StoreExecutor {
+
+	public static final int QUEUE_CAPACITY = 1024;
+
+	private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+	private static final ThreadPoolExecutor SHARED;
+
+	static {
+		int threads = Runtime.getRuntime().availableProcessors();
+		SHARED = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+			Thread thread = new Thread(r, "libkeychain-io-" + THREAD_COUNT.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		// idle threads go away, the pool is only busy while stores are
+		SHARED.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * A store operation, which may fail like the blocking one does.
+	 */
+	@FunctionalInterface
+	public interface Task<T> {
+		T run() throws IOException, GeneralSecurityException;
+	}
+
+	private StoreExecutor() {}
+
+	public static Executor shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Runs {@code task} on {@code executor}.
+	 * @return A future completed with the result of the task, or with the exception it threw,
+	 * unwrapped. If {@code executor} is full, it is already completed with the {@link RejectedExecutionException}.
+	 */
+	public static <T> CompletableFuture<T> submit(Executor executor, Task<T> task) {
+
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(task.run());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+
+	}
+
+}
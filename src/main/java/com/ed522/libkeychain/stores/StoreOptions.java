@@ -0,0 +1,232 @@
+package com.ed522.libkeychain.stores;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tuning options for opening a {@code Keystore} or {@code AliasStore}.
+ * The defaults match the behaviour of the plain constructors.
+ */
+public class StoreOptions {
+
+	private boolean mappedRead = false;
+	private boolean parallelLoad = false;
+	private ForkJoinPool loadPool = null;
+	private double compactionThreshold = 0;
+	private Executor compactionExecutor = null;
+	private Durability durability = Durability.SYNC;
+	private long groupCommitDelay = 10;
+	private boolean writeAheadLog = false;
+	private long checkpointSize = 4L << 20;
+	private boolean lazyDecoding = false;
+	private boolean cacheDecoded = true;
+	private boolean directory = false;
+	private long unlockCacheTtl = 0;
+	private KdfParams kdf = KdfParams.DEFAULT;
+	private Executor asyncExecutor = null;
+	private boolean shared = false;
+
+	/**
+	 * If set, the store file is read through a memory mapping when opened instead of
+	 * through individual reads per chunk. Only applies to files up to 2 GiB.
+	 */
+	public StoreOptions setMappedRead(boolean mappedRead) {
+		this.mappedRead = mappedRead;
+		return this;
+	}
+	public boolean isMappedRead() {
+		return mappedRead;
+	}
+
+	/**
+	 * If set, opening the store first finds every chunk boundary from the length fields
+	 * and then decrypts and parses the chunks in parallel. Entry order is kept.
+	 */
+	public StoreOptions setParallelLoad(boolean parallelLoad) {
+		this.parallelLoad = parallelLoad;
+		return this;
+	}
+	public boolean isParallelLoad() {
+		return parallelLoad;
+	}
+
+	/**
+	 * Sets the pool used for parallel loading. Defaults to the common pool.
+	 */
+	public StoreOptions setLoadPool(ForkJoinPool loadPool) {
+		this.loadPool = loadPool;
+		return this;
+	}
+	public ForkJoinPool getLoadPool() {
+		return loadPool != null ? loadPool : ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Sets the share of the file taken up by removed entries at which the store compacts
+	 * itself after a removal. 0 (the default) only compacts when asked to.
+	 * @param compactionThreshold Between 0 and 1
+	 */
+	public StoreOptions setCompactionThreshold(double compactionThreshold) {
+		if (compactionThreshold < 0 || compactionThreshold > 1) throw new IllegalArgumentException("Threshold must be between 0 and 1");
+		this.compactionThreshold = compactionThreshold;
+		return this;
+	}
+	public double getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets where automatic compaction runs. If not set it runs on the thread doing the removal.
+	 */
+	public StoreOptions setCompactionExecutor(Executor compactionExecutor) {
+		this.compactionExecutor = compactionExecutor;
+		return this;
+	}
+	public Executor getCompactionExecutor() {
+		return compactionExecutor;
+	}
+
+	/**
+	 * Sets when changes are forced to disk. Defaults to {@link Durability#SYNC}.
+	 */
+	public StoreOptions setDurability(Durability durability) {
+		this.durability = durability;
+		return this;
+	}
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, {@link Durability#GROUP} waits after the first unsynced change
+	 * before forcing everything written so far to disk. Defaults to 10.
+	 */
+	public StoreOptions setGroupCommitDelay(long groupCommitDelay) {
+		if (groupCommitDelay < 0) throw new IllegalArgumentException("Delay must not be negative");
+		this.groupCommitDelay = groupCommitDelay;
+		return this;
+	}
+	public long getGroupCommitDelay() {
+		return groupCommitDelay;
+	}
+
+	/**
+	 * If set, changes are appended to a log next to the store file ({@code <file>.wal}) instead of
+	 * being written into it, and the store file is only rewritten at checkpoints. The log is replayed
+	 * when the store is opened, whether or not this is set.
+	 */
+	public StoreOptions setWriteAheadLog(boolean writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+		return this;
+	}
+	public boolean isWriteAheadLog() {
+		return writeAheadLog;
+	}
+
+	/**
+	 * Sets the size in bytes the write-ahead log may reach before the store checkpoints.
+	 * Defaults to 4 MiB. Checkpoints run where compaction does, see {@link #setCompactionExecutor}.
+	 */
+	public StoreOptions setCheckpointSize(long checkpointSize) {
+		if (checkpointSize <= 0) throw new IllegalArgumentException("Checkpoint size must be positive");
+		this.checkpointSize = checkpointSize;
+		return this;
+	}
+	public long getCheckpointSize() {
+		return checkpointSize;
+	}
+
+	/**
+	 * If set, opening a {@code Keystore} only keeps the name and type of each entry. The key material
+	 * is read back from the file and parsed the first time it's asked for. Has no effect on an {@code AliasStore}.
+	 */
+	public StoreOptions setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+		return this;
+	}
+	public boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	/**
+	 * Sets whether lazily decoded key material is kept once parsed. If not, every access reads and
+	 * parses the entry again, so no key material stays on the heap between accesses. Defaults to true.
+	 * @see #setLazyDecoding
+	 */
+	public StoreOptions setCacheDecoded(boolean cacheDecoded) {
+		this.cacheDecoded = cacheDecoded;
+		return this;
+	}
+	public boolean isCacheDecoded() {
+		return cacheDecoded;
+	}
+
+	/**
+	 * If set, the store keeps a directory of its entries at the end of the file, so opening it only
+	 * decrypts that one chunk. Entries opened through it are decoded lazily, see {@link #setLazyDecoding}.
+	 * Writes make the directory stale, it is written again on {@code close()}, {@code commit()} and {@code compact()}.
+	 */
+	public StoreOptions setDirectory(boolean directory) {
+		this.directory = directory;
+		return this;
+	}
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, the master key of a store opened with these options stays in the
+	 * process-wide {@link UnlockCache}. Reopening the same file with the same password within that time
+	 * skips key derivation. 0 (the default) doesn't use the cache.
+	 */
+	public StoreOptions setUnlockCacheTtl(long unlockCacheTtl) {
+		if (unlockCacheTtl < 0) throw new IllegalArgumentException("TTL must not be negative");
+		this.unlockCacheTtl = unlockCacheTtl;
+		return this;
+	}
+	public long getUnlockCacheTtl() {
+		return unlockCacheTtl;
+	}
+
+	/**
+	 * Sets how the master key is derived from the password in new store files, see
+	 * {@link KeyDerivation#calibrate} to pick them. Existing files keep the parameters they
+	 * were created with, which are read from their header.
+	 */
+	public StoreOptions setKdf(KdfParams kdf) {
+		if (kdf == null) throw new IllegalArgumentException("No key derivation parameters");
+		this.kdf = kdf;
+		return this;
+	}
+	public KdfParams getKdf() {
+		return kdf;
+	}
+
+	/**
+	 * Sets where the asynchronous operations of the store run, like {@code addAsync}.
+	 * Defaults to the pool shared by all stores, see {@link StoreExecutor}.
+	 */
+	public StoreOptions setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+		return this;
+	}
+	public Executor getAsyncExecutor() {
+		return asyncExecutor != null ? asyncExecutor : StoreExecutor.shared();
+	}
+
+	/**
+	 * If set, other processes may have the same store file open and write to it, as long as they
+	 * also set this. Writes take a lock on a file next to the store ({@code <file>.lock}) and first
+	 * catch up with what the others wrote, and {@code refresh()} catches up without writing.
+	 * Can't be used with a write-ahead log, whose changes the others wouldn't see.
+	 * @see SharedFile
+	 */
+	public StoreOptions setShared(boolean shared) {
+		this.shared = shared;
+		return this;
+	}
+	public boolean isShared() {
+		return shared;
+	}
+
+}
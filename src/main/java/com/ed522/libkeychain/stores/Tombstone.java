@@ -0,0 +1,33 @@
+package com.ed522.libkeychain.stores;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Marks a removed entry's chunk as dead.
+ *
+ * Entry payloads start with a non-negative name length, so a payload starting with
+ * {@link #MARKER} cannot be an entry. A removed entry's chunk is re-encrypted in place with
+ * such a payload of the same length, so removal never moves other chunks. Dead chunks are
+ * skipped when loading and dropped by compaction.
+ */
+public final class Tombstone {
+
+	public static final int MARKER = -1;
+
+	private Tombstone() {}
+
+	public static boolean isTombstone(byte[] plaintext) {
+		return plaintext.length >= Integer.BYTES && ByteBuffer.wrap(plaintext).getInt(0) == MARKER;
+	}
+
+	/**
+	 * @return A tombstone payload of {@code dataLength} bytes
+	 */
+	public static byte[] of(int dataLength) {
+		if (dataLength < Integer.BYTES) throw new IllegalArgumentException("Too short for a tombstone: " + dataLength);
+		byte[] payload = new byte[dataLength];
+		ByteBuffer.wrap(payload).putInt(0, MARKER);
+		return payload;
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Process-wide cache of derived master keys, so a store reopened shortly after being unlocked
+ * doesn't pay for key derivation again. Only used by stores opened with
+ * {@link StoreOptions#setUnlockCacheTtl}.
+ *
+ * Keys are cached by the store file's real path and salt, along with a digest of the password
+ * and parameters they were derived from. A lookup with any other password misses, and only keys
+ * the store has verified are cached, so a wrong password never replaces a right one. Each cached
+ * key is destroyed when its time is up, on a daemon thread shared by the whole cache, and stores
+ * get their own copy that they can destroy on close.
+ */
+public final class UnlockCache {
+
+	private static final ScheduledExecutorService EXPIRY = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "libkeychain-unlock-cache");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final Map<Slot, Unlocked> CACHE = new ConcurrentHashMap<>();
+
+	private record Slot(Path path, ByteBuffer salt) {}
+
+	private static final class Unlocked {
+
+		private final MasterKey key;
+		private final byte[] verifier;
+		private final long expiresAt;
+
+		Unlocked(MasterKey key, byte[] verifier, long expiresAt) {
+			this.key = key;
+			this.verifier = verifier;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isValid(byte[] verifier) {
+			return expiresAt - System.nanoTime() > 0 && MessageDigest.isEqual(this.verifier, verifier);
+		}
+
+		void destroy() {
+			key.destroy();
+			Arrays.fill(verifier, (byte) 0);
+		}
+
+	}
+
+	private UnlockCache() {}
+
+	// identifies the password without keeping it
+	private static byte[] verifier(String password, byte[] salt, KdfParams kdf) throws GeneralSecurityException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(salt);
+		digest.update(kdf.encode());
+		ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+		byte[] raw = new byte[encoded.remaining()];
+		encoded.get(raw);
+		digest.update(raw);
+		Arrays.fill(raw, (byte) 0);
+		return digest.digest();
+	}
+
+	/**
+	 * Gets the master key for a store file, from the cache if it was unlocked with the same password
+	 * within the TTL set in {@code options}, otherwise by deriving it. A derived key is only cached
+	 * once the store has checked it and calls {@link #remember}.
+	 * @param path The store file
+	 * @param kdf The parameters from the file's header
+	 */
+	public static SecretKey unlock(Path path, String password, byte[] salt, KdfParams kdf, StoreOptions options) throws IOException, GeneralSecurityException {
+
+		if (options.getUnlockCacheTtl() > 0) {
+			Unlocked cached = CACHE.get(new Slot(path.toRealPath(), ByteBuffer.wrap(salt.clone())));
+			if (cached != null && cached.isValid(verifier(password, salt, kdf))) {
+				SecretKey copy = cached.key.copy();
+				// null if it expired in between
+				if (copy != null) return copy;
+			}
+		}
+		return KeyDerivation.derive(password, salt, kdf);
+
+	}
+
+	/**
+	 * Caches a master key that has been checked against its store, for the TTL set in {@code options}.
+	 * Does nothing if there is no TTL or the key is already cached.
+	 */
+	public static void remember(Path path, String password, byte[] salt, KdfParams kdf, SecretKey key, StoreOptions options) throws IOException, GeneralSecurityException {
+
+		long ttl = options.getUnlockCacheTtl();
+		if (ttl <= 0) return;
+
+		Slot slot = new Slot(path.toRealPath(), ByteBuffer.wrap(salt.clone()));
+		byte[] verifier = verifier(password, salt, kdf);
+		Unlocked cached = CACHE.get(slot);
+		if (cached != null && cached.isValid(verifier)) return;
+
+		Unlocked unlocked = new Unlocked(new MasterKey(key), verifier, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl));
+		Unlocked replaced = CACHE.put(slot, unlocked);
+		if (replaced != null) replaced.destroy();
+		EXPIRY.schedule(() -> {
+			if (CACHE.remove(slot, unlocked)) unlocked.destroy();
+		}, ttl, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Destroys every cached key.
+	 */
+	public static void clear() {
+		for (Slot slot : CACHE.keySet()) {
+			Unlocked unlocked = CACHE.remove(slot);
+			if (unlocked != null) unlocked.destroy();
+		}
+	}
+
+	/**
+	 * @return The number of keys currently cached
+	 */
+	public static int size() {
+		return CACHE.size();
+	}
+
+}
@@ -0,0 +1,174 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only log of store mutations, kept next to the store file.
+ *
+ * Every record is one chunk encrypted with the store's {@link ChunkParser}. The first record holds
+ * the chunk0 of the store file the log applies to. A checkpoint writes a new store file, which always
+ * has a new chunk0, so a log left over from before a checkpoint is recognised as stale and dropped.
+ *
+ * Structure:
+ *  HEADER: chunk           holds the store's chunk0
+ *  RECORDS: chunk[]        each one {COUNT: 4B, OPS: Op[COUNT]}, applied all or nothing
+ * Op
+ *  TYPE: 1B                ADD or REMOVE
+ *  LEN: 4B
+ *  DATA: byte[LEN]         the encoded entry for ADD, for REMOVE the 4B position in the entry list
+ *                          and the 8B offset of the entry's chunk, checked against the file on replay
+ */
+public final class WriteAheadLog implements Closeable {
+
+	public static final byte ADD = 1;
+	public static final byte REMOVE = 2;
+
+	public record Op(byte type, byte[] data) {
+		public static Op add(byte[] encodedEntry) {
+			return new Op(ADD, encodedEntry);
+		}
+		/**
+		 * @param offset Where the entry's chunk is in the store file, {@link ChunkTable#UNWRITTEN} if
+		 * it is only in the log
+		 */
+		public static Op remove(int index, long offset) {
+			return new Op(REMOVE, ByteBuffer.allocate(Integer.BYTES + Long.BYTES).putInt(index).putLong(offset).array());
+		}
+		public int index() {
+			return ByteBuffer.wrap(data).getInt();
+		}
+		public long offset() {
+			return ByteBuffer.wrap(data).getLong(Integer.BYTES);
+		}
+	}
+
+	private final FileChannel channel;
+	private final ChunkParser parser;
+
+	/**
+	 * Reads every complete record in the log at {@code path}. A torn record at the end, left by a crash
+	 * during an append, is cut off. A log for another version of the store is emptied.
+	 * @param marker The chunk0 of the store file
+	 * @return The operations in order, empty if there is no log
+	 */
+	public static List<Op> replay(Path path, ChunkParser parser, byte[] marker) throws IOException {
+
+		List<Op> ops = new ArrayList<>();
+		if (!Files.isRegularFile(path)) return ops;
+
+		try (RandomAccessFile log = new RandomAccessFile(path.toFile(), "rw")) {
+
+			if (log.length() == 0) return ops;
+
+			try {
+				if (!Arrays.equals(marker, parser.decryptChunk(log))) {
+					log.setLength(0);
+					return ops;
+				}
+			} catch (EOFException | GeneralSecurityException e) {
+				log.setLength(0);
+				return ops;
+			}
+
+			long good = log.getFilePointer();
+			while (log.getFilePointer() < log.length()) {
+				try {
+					ops.addAll(decode(parser.decryptChunk(log)));
+					good = log.getFilePointer();
+				} catch (EOFException | GeneralSecurityException e) {
+					break;
+				}
+			}
+			if (good < log.length()) log.setLength(good);
+
+		}
+		return ops;
+
+	}
+
+	private static List<Op> decode(byte[] record) {
+
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		int count = buf.getInt();
+		List<Op> ops = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			byte type = buf.get();
+			byte[] data = new byte[buf.getInt()];
+			buf.get(data);
+			ops.add(new Op(type, data));
+		}
+		return ops;
+
+	}
+
+	/**
+	 * Opens the log at {@code path} for appending, creating it for {@code marker} if it is empty.
+	 * Call {@link #replay} first, so a stale or torn log has been dealt with.
+	 */
+	public WriteAheadLog(Path path, ChunkParser parser, byte[] marker) throws IOException, GeneralSecurityException {
+
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.parser = parser;
+		if (channel.size() == 0) reset(marker);
+
+	}
+
+	/**
+	 * Appends {@code ops} as one record with a single write.
+	 */
+	public void append(List<Op> ops) throws IOException, GeneralSecurityException {
+
+		int size = Integer.BYTES;
+		for (Op op : ops) size = Math.addExact(size, 1 + Integer.BYTES + op.data().length);
+
+		ByteBuffer record = ByteBuffer.allocate(size);
+		record.putInt(ops.size());
+		for (Op op : ops) {
+			record.put(op.type());
+			record.putInt(op.data().length);
+			record.put(op.data());
+		}
+
+		write(parser.newChunk(record.array()));
+
+	}
+
+	/**
+	 * Empties the log and starts it over for the store file with chunk0 {@code marker}.
+	 */
+	public void reset(byte[] marker) throws IOException, GeneralSecurityException {
+		channel.truncate(0);
+		write(parser.newChunk(marker));
+	}
+
+	private void write(byte[] chunk) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(chunk);
+		long position = channel.size();
+		while (buf.hasRemaining()) position += channel.write(buf, position);
+	}
+
+	public long size() throws IOException {
+		return channel.size();
+	}
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
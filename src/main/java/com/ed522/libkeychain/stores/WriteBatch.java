@@ -0,0 +1,79 @@
+package com.ed522.libkeychain.stores;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Writes to a store file held in memory until they are committed through a {@link Journal}.
+ *
+ * Reads through the batch see the staged writes over the file. Writes are expected at chunk
+ * boundaries: a write either lies entirely inside an earlier staged write, which it then
+ * patches, or starts a new staged range.
+ */
+public class WriteBatch {
+
+	private final NavigableMap<Long, byte[]> writes = new TreeMap<>();
+	private long length;
+
+	/**
+	 * @param fileLength The length of the file when the batch starts
+	 */
+	public WriteBatch(long fileLength) {
+		this.length = fileLength;
+	}
+
+	private Map.Entry<Long, byte[]> covering(long offset, int length) {
+		Map.Entry<Long, byte[]> entry = writes.floorEntry(offset);
+		if (entry != null && offset + length <= entry.getKey() + entry.getValue().length) return entry;
+		return null;
+	}
+
+	public void write(long offset, byte[] data) {
+
+		Map.Entry<Long, byte[]> covering = covering(offset, data.length);
+		if (covering != null) {
+			System.arraycopy(data, 0, covering.getValue(), (int) (offset - covering.getKey()), data.length);
+		} else {
+			writes.put(offset, data.clone());
+		}
+		length = Math.max(length, offset + data.length);
+
+	}
+
+	/**
+	 * Fills {@code dst} from {@code offset}, from the staged writes if they hold it and from
+	 * {@code channel} otherwise.
+	 */
+	public void read(FileChannel channel, long offset, byte[] dst) throws IOException {
+
+		Map.Entry<Long, byte[]> covering = covering(offset, dst.length);
+		if (covering != null) {
+			System.arraycopy(covering.getValue(), (int) (offset - covering.getKey()), dst, 0, dst.length);
+		} else {
+			ChunkTable.readFully(channel, ByteBuffer.wrap(dst), offset);
+		}
+
+	}
+
+	/**
+	 * @return The length the file will have once the batch is applied
+	 */
+	public long length() {
+		return length;
+	}
+	public boolean isEmpty() {
+		return writes.isEmpty();
+	}
+	/**
+	 * @return The staged writes by offset
+	 */
+	public NavigableMap<Long, byte[]> writes() {
+		return Collections.unmodifiableNavigableMap(writes);
+	}
+
+}
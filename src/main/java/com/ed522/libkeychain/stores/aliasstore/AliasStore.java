@@ -1,397 +1,267 @@
 package com.ed522.libkeychain.stores.aliasstore;
 
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.io.StreamCorruptedException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
 
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
-import javax.security.auth.DestroyFailedException;
-import javax.security.auth.Destroyable;
+import com.ed522.libkeychain.stores.ChunkStore;
+import com.ed522.libkeychain.stores.ChunkWriter;
+import com.ed522.libkeychain.stores.Directory;
+import com.ed522.libkeychain.stores.StoreExecutor;
+import com.ed522.libkeychain.stores.StoreOptions;
 
-import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.util.Arrays;
+public final class AliasStore extends ChunkStore<CertificateEntry> {
 
-import com.ed522.libkeychain.stores.ChunkParser;
-import com.ed522.libkeychain.stores.ObservableArrayList;
-import com.ed522.libkeychain.stores.keystore.Keystore;
-import com.ed522.libkeychain.util.Constants;
+    private static final String MAGIC = "LKAS";
+    // with key derivation parameters
+    private static final String MAGIC_V2 = "LKA2";
 
-public class AliasStore implements Closeable, Destroyable {
-
-    private static final String ALREADY_CLOSED_MESSAGE = "Already closed or destroyed, not accessible anymore";
-    protected static final byte[] VERIFICATION_BYTES = {0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0A, 0x0B, 0x0C, 0x0D, 0x0E, 0x0F};
-    
     /*
      * Lengths may be added based on requirements.
-     * 
-     * Each file shall be split into *segments*, that each have their own IV.
-     * Each segment is of a variable length, with an IV at the start, a 32-bit length and an extra 12 bytes for the AEAD tag.
-     * 
-     * Each segment is headed with 128 bits of random IV.
-     * Segments are reencrypted upon modification and the IV is regenerated.
-     * 
-     * All encryption uses GCM and IVs are incremented from 0.
-     * Upon overflow the file is regenerated with a new salt, IV and key.
-     * 
-     * The crypto used is CBC and it is re-encrypted on every startup.
-     * The HMAC used is SHA256 and is recalculated with the crypto.
-     * 
+     *
+     * Each certificate is in its own chunk, see ChunkStore for the chunks and how they are encrypted.
+     *
      * Structure:
-     * 
+     *
      * Header
      *  MAGIC: "LKAS"               PLAIN       // verify that it's the right file (US ASCII)
+     *                                          // or "LKA2", followed by key derivation parameters (see KdfParams)
      *  SALT: 32B                   PLAIN       // salt the password
      *  ----- everything past this is encrypted and segmented -----
      *  [[ start seg0 ]]
      *  VERIFY: 16B                 CRYPT       // test if key is correct, one block (see constant for value)
-     *  ENTRIES: 8B                 CRYPT       // entry count
+     *  ENTRIES: 8B                 CRYPT       // chunk count, including removed entries
      *  [[ end seg0 ]]
      *  CLICERTS: cert[]            CRYPT       // vast majority of the file is this
+     *                                          // removed ones are tombstones (see Tombstone), may end in a Directory
      */
 
-    private final RandomAccessFile raf;
-    private final SecretKey masterKey;
-    private final ObservableArrayList<CertificateEntry> entries;
-    private boolean closed;
-
-    private static byte[] toBytes(int val) {
-        return ByteBuffer.allocate(4).putInt(val).array();
-    }
+    // first entry wins for duplicate names, matching the old linear scan
+    private final Map<String, CertificateEntry> byName = new ConcurrentHashMap<>();
+    // every alias of a certificate in the order they were indexed, unmodifiable, the first is looked up
+    private final Map<ByteBuffer, List<CertificateEntry>> byFingerprint = new ConcurrentHashMap<>();
+    private final NavigableMap<String, CertificateEntry> sortedByName = new ConcurrentSkipListMap<>();
 
     /**
-     * Build a completely new file.
-     * @throws IOException 
+     * Creates a {@code AliasStore} for a file.
+     *
+     * If you want to store to a file, USE THIS. This updates the store incrementally. However, the entire keystore will be rewritten each time it is initialized.
+     *
+     * @param file The file to store. Must not be null.
+     * @throws IOException
      * @throws GeneralSecurityException
-     * @throws InvalidCipherTextException 
      */
-    private static void buildFile(RandomAccessFile file, String password, byte[] keyBytesToSet) throws IOException, GeneralSecurityException {
-
-        file.write("LKAS".getBytes(StandardCharsets.US_ASCII));
-
-        byte[] salt = new byte[32];
-
-        new SecureRandom().nextBytes(salt);
-        file.write(salt);
-        
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(Constants.PBKDF_MODE);
-        SecretKey masterKey = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, Constants.PBKDF2_ITERATIONS, 256));
-        System.arraycopy(masterKey.getEncoded(), 0, keyBytesToSet, 0, 32);
-
-        // chunked
-        ChunkParser parser = new ChunkParser(masterKey);
-        // verification, 0 entries
-        byte[] chunk0Bytes = Arrays.concatenate(VERIFICATION_BYTES, new byte[8]);
-        
-        file.write(parser.newChunk(chunk0Bytes));
-        
-    }
-    private static void buildFile(OutputStream out, String password, byte[] keyBytesToSet) throws IOException, GeneralSecurityException {
-        
-        out.write("LKAS".getBytes(StandardCharsets.US_ASCII));
-
-        byte[] salt = new byte[32];
-
-        new SecureRandom().nextBytes(salt);
-        out.write(salt);
-        
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(Constants.PBKDF_MODE);
-        SecretKey masterKey = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, Constants.PBKDF2_ITERATIONS, 256));
-        System.arraycopy(masterKey.getEncoded(), 0, keyBytesToSet, 0, 32);
-        
-        // chunked
-        ChunkParser parser = new ChunkParser(masterKey);
-        // verification, 0 entries
-        byte[] chunk0Bytes = Arrays.concatenate(VERIFICATION_BYTES, new byte[8]);
-
-        out.write(parser.newChunk(chunk0Bytes));
-
-    }
-    private static List<CertificateEntry> readFile(RandomAccessFile file, String password, byte[] keyBytesToSet) throws GeneralSecurityException, IOException {
-
-        List<CertificateEntry> certs = new ArrayList<>();
-        
-        byte[] magicIn = new byte[4];
-        file.read(magicIn);
-        // magic
-        if (!new String(magicIn, StandardCharsets.US_ASCII).equals("LKAS")) throw new StreamCorruptedException("Bad magic number (wrong file?)");
-        
-        byte[] salt = new byte[32];
-        file.read(salt);
-
-        SecretKeyFactory factory = SecretKeyFactory.getInstance(Constants.PBKDF_MODE);
-        SecretKey masterKey = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, Constants.PBKDF2_ITERATIONS, 256));
-        System.arraycopy(masterKey.getEncoded(), 0, keyBytesToSet, 0, 32);
-
-        // read first chunk
-        ChunkParser parser = new ChunkParser(masterKey);
-        ByteBuffer data = ByteBuffer.wrap(parser.decryptChunk(file));
-        byte[] verification = new byte[VERIFICATION_BYTES.length];
-
-        data.get(verification);
-        if (!Arrays.areEqual(verification, VERIFICATION_BYTES)) throw new StreamCorruptedException("Bad encryption verification (wrong password?)");
-
-        long entries = data.getLong();
-
-        // read certificate entries
-
-        for (int i = 0; i < entries; i++) {
-            certs.add(CertificateEntry.parse(parser.decryptChunk(file)));
-        }
-
-        return certs;
-
+    public AliasStore(File file, String password) throws IOException, GeneralSecurityException {
+        this(file, password, new StoreOptions());
     }
 
     /**
-     * Creates a {@code Keystore} for a file.
-     * 
-     * If you want to store to a file, USE THIS. This updates the store incrementally. However, the entire keystore will be rewritten each time it is initialized.
-     * 
+     * Creates a {@code AliasStore} for a file, with the given tuning options.
+     *
      * @param file The file to store. Must not be null.
+     * @param options How the file is read and written
      * @throws IOException
      * @throws GeneralSecurityException
+     * @see StoreOptions
      */
-    public AliasStore(File file, String password) throws IOException, GeneralSecurityException {
-        
-        if (!file.exists() && !file.createNewFile()) throw new IllegalStateException("Failed to create file");
-
-        this.raf = new RandomAccessFile(file, "rws");
-        entries = new ObservableArrayList<>(CertificateEntry.class);
-        this.entries.addOnAdd((CertificateEntry entry) -> {
-            try {
-                newEntry(entry);
-            } catch (IOException | GeneralSecurityException e) {
-                throw new IllegalStateException(e);
-            }
-        });
-        this.entries.addOnRemove((CertificateEntry entry) -> {
-            try {
-                removeEntry(entry.getName());
-            } catch (GeneralSecurityException | IOException e) {
-                throw new IllegalStateException(e);
-            }
-        });
-
-        byte[] masterKeyRaw = new byte[32];
-
-        // build new
-        if (file.length() == 0) {
-            buildFile(this.raf, password, masterKeyRaw);
-        } else {
-            // read
-            entries.addAllUnchecked(readFile(this.raf, password, masterKeyRaw));
-        }
-        
-        masterKey = new SecretKeySpec(masterKeyRaw, "AES");
-
+    public AliasStore(File file, String password, StoreOptions options) throws IOException, GeneralSecurityException {
+        super(file, options, CertificateEntry::getName);
+        open(password, MAGIC, MAGIC_V2);
     }
 
     /**
-     * Creates a {@code Keystore} for the specified output stream.
-     * 
-     * DO NOT USE FOR FILES. This will rewrite the keystore every single time. Use the File constructor.
-     * 
+     * Creates a {@code AliasStore} for the specified output stream.
+     *
+     * DO NOT USE FOR FILES. This will rewrite the store every single time. Use the File constructor.
+     *
      * @param stream
-     * @throws GeneralSecurityException 
-     * @throws IOException 
-     * @see Keystore#Keystore(File, String)
+     * @throws GeneralSecurityException
+     * @throws IOException
+     * @see AliasStore#AliasStore(File, String)
      */
     public AliasStore(OutputStream stream, CertificateEntry[] clientCerts, String password) throws IOException, GeneralSecurityException {
+        this(stream, clientCerts, password, new StoreOptions());
+    }
 
-        this.raf = null;
-        this.entries = new ObservableArrayList<>(CertificateEntry.class);
-        this.entries.addOnAdd((CertificateEntry entry) -> {
-            try {
-                newEntry(entry);
-            } catch (IOException | GeneralSecurityException e) {
-                throw new IllegalStateException(e);
-            }
-        });
-        this.entries.addOnRemove((CertificateEntry entry) -> {
-            try {
-                removeEntry(entry.getName());
-            } catch (GeneralSecurityException | IOException e) {
-                throw new IllegalStateException(e);
-            }
-        });
-
-        byte[] masterKeyRaw = new byte[32];
-
-        buildFile(stream, password, masterKeyRaw);
-
-        masterKey = new SecretKeySpec(masterKeyRaw, "AES");
-        
+    /**
+     * Creates a {@code AliasStore} for the specified output stream, see
+     * {@link #AliasStore(OutputStream, CertificateEntry[], String)}.
+     *
+     * @param options Only the key derivation parameters are used
+     */
+    public AliasStore(OutputStream stream, CertificateEntry[] clientCerts, String password, StoreOptions options) throws IOException, GeneralSecurityException {
+        super(export(stream, clientCerts, password, options), CertificateEntry::getName);
+    }
+    // writes the whole store to the stream, returns the writer with the key it was written with
+    private static Writer export(OutputStream stream, CertificateEntry[] clientCerts, String password, StoreOptions options) throws IOException, GeneralSecurityException {
+        Writer writer = new Writer(stream, password, options, clientCerts.length);
         for (CertificateEntry e : clientCerts) {
-            stream.write(e.encode());
+            writer.write(e);
         }
-
+        writer.finish();
+        return writer;
     }
 
-    private void removeEntry(String name) throws GeneralSecurityException, IOException {
-
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-
-        // 1. find the entry
-        // 2. shift chunks of the file back
-        // 3. truncate file
-
-        long initial = raf.getFilePointer();
-
-        /* find entry */
-        raf.seek(122); // skip master salt and seg0
-
-        long entryOffset = -1;
-        long size = -1;
-        ChunkParser parser = new ChunkParser(masterKey);
-        
-        while (true) {
-
-            entryOffset = raf.getFilePointer();
-            byte[] chunk = parser.decryptChunk(raf);
-            CertificateEntry entry = CertificateEntry.parse(chunk);
-            size = chunk.length + 52l /* extra data */;
-
-            if (entry.getName().equals(name)) break;
-
+    // the same file the File constructor would write for these entries
+    private static final class Writer extends ChunkWriter<CertificateEntry> {
+        Writer(OutputStream out, String password, StoreOptions options, long count) throws IOException, GeneralSecurityException {
+            super(out, password, options, count, MAGIC, MAGIC_V2);
         }
-
-        if (entryOffset == -1 || size == -1) throw new NoSuchElementException("No certificate with name in file");
-
-        /* shift chunks */
-        while (raf.getFilePointer() < raf.length()) {
-
-            long initialOffset = raf.getFilePointer();
-            int cLen = parser.chunkLength(raf);
-            byte[] chunk = new byte[cLen + 52];
-            raf.seek(initialOffset - size);
-            raf.write(chunk);
-
+        @Override
+        protected byte[] encode(CertificateEntry entry) throws GeneralSecurityException {
+            return entry.encode();
         }
-
-        /* shrink */
-        raf.setLength(raf.length() - size);
-
-        // return
-        raf.seek(initial);
-
     }
 
-    private void newEntry(CertificateEntry entry) throws IOException, GeneralSecurityException {
-
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-
-        // Update chunk0
-        raf.seek(36);
-        // read chunk
-        ChunkParser parser = new ChunkParser(masterKey);
-        byte[] chunk = new byte[parser.chunkLength(raf)];
-        raf.read(chunk);
-        
-        ByteBuffer buf = ByteBuffer.wrap(parser.decryptChunk(chunk)).position(VERIFICATION_BYTES.length);
-        long count = buf.getLong() + 1;
-        buf.position(buf.position() - 8);
-        buf.putLong(count);
-
-        // write back chunk
-        raf.seek(36);
-        raf.write(parser.updateChunk(chunk, buf.array()));
-
-        raf.seek(raf.length());
-        new ChunkParser(masterKey).newChunk(entry.encode(), raf);
-
+    @Override
+    protected CertificateEntry decode(byte[] plaintext) throws GeneralSecurityException {
+        return CertificateEntry.parse(plaintext);
+    }
+    @Override
+    protected byte[] encode(CertificateEntry entry) throws GeneralSecurityException {
+        return entry.encode();
+    }
+    @Override
+    protected Directory.Entry describe(CertificateEntry entry, long offset, int size) {
+        return new Directory.Entry(entry.getName(), (byte) 0, entry.getFingerprint(), offset, size);
+    }
+    @Override
+    protected CertificateEntry fromDirectory(Directory.Entry entry) {
+        return new CertificateEntry(entry.name(), entry.fingerprint(), this::load, options().isCacheDecoded());
+    }
+    @Override
+    protected void pin(CertificateEntry entry) {
+        entry.pin();
+    }
+    @Override
+    protected void index(CertificateEntry entry) {
+        byName.putIfAbsent(entry.getName(), entry);
+        sortedByName.putIfAbsent(entry.getName(), entry);
+        byFingerprint.compute(ByteBuffer.wrap(entry.getFingerprint()), (fingerprint, aliases) -> {
+            if (aliases == null) return List.of(entry);
+            for (CertificateEntry alias : aliases) {
+                if (alias == entry) return aliases;
+            }
+            List<CertificateEntry> more = new ArrayList<>(aliases);
+            more.add(entry);
+            return List.copyOf(more);
+        });
+    }
+    @Override
+    protected void unindex(CertificateEntry entry) {
+        // by identity, equals() would load the entries it compares
+        byName.computeIfPresent(entry.getName(), (name, indexed) -> indexed == entry ? null : indexed);
+        sortedByName.computeIfPresent(entry.getName(), (name, indexed) -> indexed == entry ? null : indexed);
+        // another alias of the same certificate takes its place, if there is one
+        byFingerprint.computeIfPresent(ByteBuffer.wrap(entry.getFingerprint()), (fingerprint, aliases) -> {
+            List<CertificateEntry> rest = new ArrayList<>(aliases.size());
+            for (CertificateEntry alias : aliases) {
+                if (alias != entry) rest.add(alias);
+            }
+            return rest.isEmpty() ? null : List.copyOf(rest);
+        });
     }
 
-    @SuppressWarnings("unchecked") // we know it's a list
-    public List<CertificateEntry> getEntries() {
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-        return (List<CertificateEntry>) entries.clone();
+    /**
+     * Streams the entries of a store file without opening the store, decrypting one entry at a
+     * time as the stream is consumed, so memory use stays flat however large the file is.
+     *
+     * The file is read as it is on disk, changes only in a write-ahead log or an interrupted batch
+     * are not seen until the store has been opened. Close the stream to close the file.
+     *
+     * @param options Only the unlock cache TTL is used
+     * @throws IllegalStateException From the stream, wrapping a read or decryption failure
+     */
+    public static Stream<CertificateEntry> stream(File file, String password, StoreOptions options) throws IOException, GeneralSecurityException {
+        return stream(file, password, options, MAGIC, MAGIC_V2, CertificateEntry::parse);
     }
-    public void add(CertificateEntry entry) {
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-        this.entries.add(entry);
+    public static Stream<CertificateEntry> stream(File file, String password) throws IOException, GeneralSecurityException {
+        return stream(file, password, new StoreOptions());
     }
+
     public Certificate getCertificate(String name) {
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-        for (CertificateEntry entry : entries) {
-            if (entry.getName().equals(name)) return entry.getCertificate();
-        }
-        return null;
+        CertificateEntry entry = getCertificateEntry(name);
+        return entry != null ? entry.getCertificate() : null;
     }
     public CertificateEntry getCertificateEntry(String name) {
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-        for (CertificateEntry entry : entries) {
-            if (entry.getName().equals(name)) return entry;
+        checkOpen();
+        return byName.get(name);
+    }
+    /**
+     * Finds an entry by the SHA-256 digest of its encoded certificate.
+     * @param fingerprint The digest, as returned by {@link CertificateEntry#getFingerprint()}
+     * @return The entry, or null if there is none
+     */
+    public CertificateEntry getCertificateEntryByFingerprint(byte[] fingerprint) {
+        checkOpen();
+        List<CertificateEntry> aliases = byFingerprint.get(ByteBuffer.wrap(fingerprint));
+        return aliases != null ? aliases.get(0) : null;
+    }
+    /**
+     * Gets every entry whose name starts with {@code prefix}, sorted by name.
+     * An empty prefix returns all entries.
+     */
+    public List<CertificateEntry> getCertificateEntriesWithPrefix(String prefix) {
+        checkOpen();
+        // names starting with prefix sort right after it, up to the first one that doesn't
+        List<CertificateEntry> found = new ArrayList<>();
+        for (Map.Entry<String, CertificateEntry> entry : sortedByName.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) break;
+            found.add(entry.getValue());
         }
-        return null;
+        return found;
     }
 
-    public boolean hasEntry(String name) {
-        return getCertificateEntry(name) == null;
+    /**
+     * Removes every entry called {@code name} from the store and its file.
+     */
+    public void remove(String name) {
+        removeAll(entry -> entry.getName().equals(name));
     }
 
-    @Override
-    public boolean equals(Object other) {
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-        if (other instanceof AliasStore as) {
-            return as.entries.equals(this.entries) && Arrays.areEqual(this.masterKey.getEncoded(), as.masterKey.getEncoded());
-        } else return false;
+    /**
+     * Opens a store like {@link #AliasStore(File, String, StoreOptions)} does, but on the executor
+     * set in {@code options}, see {@link StoreOptions#setAsyncExecutor}. Key derivation and reading
+     * the file happen there, not on the calling thread.
+     * @return A future completed with the open store, or with why it couldn't be opened
+     */
+    public static CompletableFuture<AliasStore> openAsync(File file, String password, StoreOptions options) {
+        return StoreExecutor.submit(options.getAsyncExecutor(), () -> new AliasStore(file, password, options));
     }
-
-    @Override
-    public int hashCode() {
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-        // use a true hash bc the key is sensitive
-        // however collisions aren't an issue so 32b will be fine
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA256");
-            digest.update(toBytes(entries.hashCode()));
-            digest.update(masterKey.getEncoded());
-            digest.update(toBytes(raf.hashCode()));
-            return ByteBuffer.wrap(digest.digest()).getInt();
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(e);
-        }
+    public static CompletableFuture<AliasStore> openAsync(File file, String password) {
+        return openAsync(file, password, new StoreOptions());
     }
 
-    @Override
-    public void close() throws IOException {
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-        this.raf.close();
-        try {
-            this.masterKey.destroy();
-        } catch (DestroyFailedException e) {
-            // disregard failed destroy, this is a close operation
-            // not neededs
-        }
-        this.closed = true;
+    /**
+     * Removes entries on the store's async executor, see {@link #addAsync}.
+     */
+    public CompletableFuture<Void> removeAsync(String name) {
+        return async(() -> {
+            remove(name);
+            return null;
+        });
+    }
+    /**
+     * Looks up an entry on the store's async executor.
+     * @return A future completed with the entry, or null if there is none
+     */
+    public CompletableFuture<CertificateEntry> getAsync(String name) {
+        return async(() -> getCertificateEntry(name));
     }
 
-    @Override
-    public void destroy() throws DestroyFailedException {
-        if (closed) throw new IllegalStateException(ALREADY_CLOSED_MESSAGE);
-        this.masterKey.destroy();
-        try {
-            this.close();
-        } catch (IOException e) {
-            throw new DestroyFailedException("Failed to close: " + e.getLocalizedMessage());
-        }
-        this.closed = true; // closed is basically the same
+    public boolean hasEntry(String name) {
+        return getCertificateEntry(name) != null;
     }
 
 }
@@ -1,8 +1,10 @@
 package com.ed522.libkeychain.stores.aliasstore;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
@@ -16,12 +18,40 @@ public class CertificateEntry {
 	
 	private final String name;
 	private final Certificate cert;
+	private volatile byte[] fingerprint;
+	// set for entries read lazily, whose certificate is still in the file
+	private final Loader loader;
+	private final boolean cacheLoaded;
+	private volatile CertificateEntry loaded = null;
+
+	/**
+	 * Reads the complete entry back from wherever a lazy entry came from.
+	 */
+	@FunctionalInterface
+	interface Loader {
+		CertificateEntry load(CertificateEntry entry) throws IOException, GeneralSecurityException;
+	}
 
 	public String getName() {
 		return name;
 	}
 	public Certificate getCertificate() {
-		return cert;
+		return material().cert;
+	}
+	/**
+	 * @return The SHA-256 digest of the encoded certificate
+	 */
+	public byte[] getFingerprint() {
+
+		if (fingerprint == null) {
+			try {
+				fingerprint = MessageDigest.getInstance("SHA-256").digest(getCertificate().getEncoded());
+			} catch (CertificateEncodingException | NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return fingerprint.clone();
+
 	}
 
 	public static CertificateEntry parse(byte[] value) throws CertificateException {
@@ -45,6 +75,46 @@ public class CertificateEntry {
 	public CertificateEntry(String name, Certificate cert) {
 		this.name = name;
 		this.cert = cert;
+		this.loader = null;
+		this.cacheLoaded = false;
+	}
+	/**
+	 * Creates an entry of which only the name and fingerprint are known. The certificate is
+	 * loaded through {@code loader} when first needed.
+	 * @param cache Whether to keep the loaded entry, or load it again on every access
+	 */
+	CertificateEntry(String name, byte[] fingerprint, Loader loader, boolean cache) {
+		this.name = name;
+		this.cert = null;
+		this.fingerprint = fingerprint;
+		this.loader = loader;
+		this.cacheLoaded = cache;
+	}
+
+	// the entry holding the certificate, loading it if needed
+	private CertificateEntry material() {
+		if (loader == null) return this;
+		CertificateEntry value = loaded;
+		if (value != null) return value;
+		try {
+			value = loader.load(this);
+		} catch (IOException | GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		if (cacheLoaded) loaded = value;
+		return value;
+	}
+	/**
+	 * Keeps the certificate of a lazy entry from now on, so it no longer needs its store.
+	 */
+	void pin() {
+		if (loader != null) loaded = material();
+	}
+	/**
+	 * @return False if this entry was read lazily and its certificate is not in memory
+	 */
+	public boolean isDecoded() {
+		return loader == null || loaded != null;
 	}
 
     @Override
@@ -54,15 +124,7 @@ public class CertificateEntry {
         builder.append(name);
         builder.append(",fingerprint=");
 
-        try {
-            builder.append(Base64.getEncoder().encodeToString(
-				MessageDigest.getInstance("SHA256").digest(
-					this.getCertificate().getEncoded()
-				)
-			));
-        } catch (CertificateEncodingException | NoSuchAlgorithmException e) {
-            throw new IllegalStateException(e);
-        }
+        builder.append(Base64.getEncoder().encodeToString(this.getFingerprint()));
 
         builder.append("]");
         return builder.toString();
@@ -97,7 +159,7 @@ public class CertificateEntry {
 	public byte[] encode() throws CertificateEncodingException {
 
 		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
-		byte[] certBytes = cert.getEncoded();
+		byte[] certBytes = getCertificate().getEncoded();
 		ByteBuffer buf = ByteBuffer.allocate(8 + nameBytes.length + certBytes.length);
 
 		buf.putInt(nameBytes.length);
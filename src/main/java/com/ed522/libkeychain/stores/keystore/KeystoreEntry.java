@@ -3,8 +3,10 @@ package com.ed522.libkeychain.stores.keystore;
 import static com.ed522.libkeychain.util.GeneralUtility.exactCastToShort;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -35,6 +37,18 @@ public class KeystoreEntry {
     private final Certificate certValue;
     private final SecretKey secretValue;
     private final String name;
+    // set for entries read lazily, whose key material is still in the file
+    private final Loader loader;
+    private final boolean cacheLoaded;
+    private volatile KeystoreEntry loaded = null;
+
+    /**
+     * Reads the complete entry back from wherever a lazy entry came from.
+     */
+    @FunctionalInterface
+    interface Loader {
+        KeystoreEntry load(KeystoreEntry entry) throws IOException, GeneralSecurityException;
+    }
 
     private static final int ensure(byte[] val, int len) throws ShortBufferException {
         if (val.length < len) throw new ShortBufferException(
@@ -127,12 +141,48 @@ public class KeystoreEntry {
 
     }
 
+    /**
+     * Reads only the name and type of an encoded entry. The rest is loaded through {@code loader}
+     * when first needed.
+     * @param cache Whether to keep the loaded entry, or load it again on every access
+     */
+    static KeystoreEntry parseLazy(final byte[] value, Loader loader, boolean cache) throws ShortBufferException {
+
+        int lenNeeded = 0;
+        ByteBuffer buf = ByteBuffer.wrap(value);
+        lenNeeded = ensure(value, 4 + lenNeeded);
+        int namelen = buf.getInt();
+
+        lenNeeded = ensure(value, namelen + lenNeeded);
+        byte[] tempBuf = new byte[namelen];
+        buf.get(tempBuf);
+        String name = new String(tempBuf);
+
+        ensure(value, 1 + lenNeeded);
+        return new KeystoreEntry(name, EntryType.forID(buf.get()), loader, cache);
+
+    }
+
+    /**
+     * Creates an entry of which only the name and type are known, see {@link #parseLazy}.
+     */
+    KeystoreEntry(String name, EntryType type, Loader loader, boolean cache) {
+        this.name = name;
+        this.type = type;
+        this.privateValue = null;
+        this.certValue = null;
+        this.secretValue = null;
+        this.loader = loader;
+        this.cacheLoaded = cache;
+    }
     public KeystoreEntry(String name, PrivateKey value) {
         this.name = name;
         this.type = EntryType.PRIVATE;
         this.privateValue = value;
         this.certValue = null;
         this.secretValue = null;
+        this.loader = null;
+        this.cacheLoaded = false;
     }
     public KeystoreEntry(String name, Certificate value) {
         this.name = name;
@@ -140,6 +190,8 @@ public class KeystoreEntry {
         this.privateValue = null;
         this.certValue = value;
         this.secretValue = null;
+        this.loader = null;
+        this.cacheLoaded = false;
     }
     public KeystoreEntry(String name, SecretKey value) {
         this.name = name;
@@ -147,22 +199,50 @@ public class KeystoreEntry {
         this.privateValue = null;
         this.certValue = null;
         this.secretValue = value;
+        this.loader = null;
+        this.cacheLoaded = false;
+    }
+
+    // the entry holding the key material, loading it if needed
+    private KeystoreEntry material() {
+        if (loader == null) return this;
+        KeystoreEntry value = loaded;
+        if (value != null) return value;
+        try {
+            value = loader.load(this);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        if (cacheLoaded) loaded = value;
+        return value;
+    }
+    /**
+     * Keeps the key material of a lazy entry from now on, so it no longer needs its store.
+     */
+    void pin() {
+        if (loader != null) loaded = material();
+    }
+    /**
+     * @return False if this entry was read lazily and its key material is not in memory
+     */
+    public boolean isDecoded() {
+        return loader == null || loaded != null;
     }
     
     public Certificate getCertificate() {
         if (!this.type.equals(EntryType.PUBLIC))
             throw new IllegalStateException("Wrong type: this entry is not a certificate");
-        else return certValue;
+        else return material().certValue;
     }
     public PrivateKey getPrivate() {
         if (!this.type.equals(EntryType.PRIVATE))
             throw new IllegalStateException("Wrong type: this entry is not a private key");
-        else return privateValue;
+        else return material().privateValue;
     }
     public SecretKey getSecret() {
         if (!this.type.equals(EntryType.SECRET))
             throw new IllegalStateException("Wrong type: this entry is not a secret key");
-        else return secretValue;
+        else return material().secretValue;
     }
     public String getName() {
         return name;
@@ -175,9 +255,9 @@ public class KeystoreEntry {
     }
 
     public byte[] getByteValue() throws CertificateEncodingException {
-        if (type.equals(EntryType.PRIVATE)) return privateValue.getEncoded();
-        else if (type.equals(EntryType.SECRET)) return secretValue.getEncoded();
-        else return certValue.getEncoded();
+        if (type.equals(EntryType.PRIVATE)) return getPrivate().getEncoded();
+        else if (type.equals(EntryType.SECRET)) return getSecret().getEncoded();
+        else return getCertificate().getEncoded();
     }
 
     @Override
@@ -0,0 +1,53 @@
+package com.ed522.libkeychain.stores.keystore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import com.ed522.libkeychain.stores.ChunkWriter;
+import com.ed522.libkeychain.stores.StoreOptions;
+
+/**
+ * Writes a keystore file one entry at a time, so exporting never needs every entry in memory.
+ * The result is an ordinary store file that {@link Keystore} can open.
+ *
+ * The entry count in chunk0 comes first in the file. If it isn't given up front, chunk0 is
+ * written with {@link #UNKNOWN_COUNT}, and either filled in by {@link #finish()} when writing
+ * to a {@link File}, or left for the first {@code Keystore} to open the file, which then counts
+ * the chunks up to the end of the file and writes the count itself.
+ */
+public class KeystoreWriter extends ChunkWriter<KeystoreEntry> {
+
+    /**
+     * Writes a store with an unknown number of entries to a stream.
+     */
+    public KeystoreWriter(OutputStream out, String password) throws IOException, GeneralSecurityException {
+        this(out, password, new StoreOptions(), UNKNOWN_COUNT);
+    }
+
+    /**
+     * Writes a store to a stream.
+     *
+     * @param options Only the key derivation parameters are used
+     * @param count How many entries will be written, or {@link #UNKNOWN_COUNT}
+     */
+    public KeystoreWriter(OutputStream out, String password, StoreOptions options, long count) throws IOException, GeneralSecurityException {
+        super(out, password, options, count, Keystore.MAGIC, Keystore.MAGIC_V2);
+    }
+
+    /**
+     * Writes a store to a file, replacing anything in it. The count is filled in when finished.
+     *
+     * @param options Only the key derivation parameters are used
+     */
+    public KeystoreWriter(File file, String password, StoreOptions options) throws IOException, GeneralSecurityException {
+        super(file, password, options, Keystore.MAGIC, Keystore.MAGIC_V2);
+    }
+
+    @Override
+    protected byte[] encode(KeystoreEntry entry) throws GeneralSecurityException {
+        return entry.encode();
+    }
+
+}
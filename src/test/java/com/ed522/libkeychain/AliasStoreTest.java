@@ -1,13 +1,18 @@
 package com.ed522.libkeychain;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigInteger;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
@@ -24,16 +29,24 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
 
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.ed522.libkeychain.stores.KdfParams;
+import com.ed522.libkeychain.stores.StoreEvent;
+import com.ed522.libkeychain.stores.StoreOptions;
 import com.ed522.libkeychain.stores.aliasstore.AliasStore;
 import com.ed522.libkeychain.stores.aliasstore.CertificateEntry;
 import com.ed522.libkeychain.util.Logger;
@@ -54,6 +67,10 @@ public class AliasStoreTest {
     private static final String PASSWORD = "testpasswd";
     private File file;
 
+    // the store file, and the log and lock next to it, is gone after each test
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private static final Certificate generateCertificate(String cn, PublicKey pk, PrivateKey signer) throws CertificateException, OperatorCreationException, IOException {
 
         return CertificateFactory.getInstance("X.509").generateCertificate(
@@ -108,11 +125,170 @@ public class AliasStoreTest {
 
     }
 
+    @Test
+    public void lookupTest() throws IOException, GeneralSecurityException {
+
+        AliasStore first = new AliasStore(file, PASSWORD);
+        first.add(new CertificateEntry("client.a", firstCert));
+        first.add(new CertificateEntry("client.b", secondCert));
+        first.add(new CertificateEntry("server", thirdCert));
+        first.close();
+
+        // indexes are rebuilt on load
+        AliasStore second = new AliasStore(file, PASSWORD);
+        assertEquals(secondCert, second.getCertificate("client.b"));
+        assertTrue(second.hasEntry("server"));
+        assertNull(second.getCertificateEntry("client"));
+
+        CertificateEntry entry = second.getCertificateEntry("client.a");
+        assertEquals(entry, second.getCertificateEntryByFingerprint(entry.getFingerprint()));
+        assertNull(second.getCertificateEntryByFingerprint(new byte[32]));
+
+        List<CertificateEntry> clients = second.getCertificateEntriesWithPrefix("client.");
+        assertEquals(2, clients.size());
+        assertEquals("client.a", clients.get(0).getName());
+        assertEquals("client.b", clients.get(1).getName());
+        assertEquals(3, second.getCertificateEntriesWithPrefix("").size());
+        assertTrue(second.getCertificateEntriesWithPrefix("x").isEmpty());
+
+        // the last char there is, still within the prefix
+        second.add(new CertificateEntry("client.\uFFFF", thirdCert));
+        assertEquals(3, second.getCertificateEntriesWithPrefix("client.").size());
+        assertEquals(1, second.getCertificateEntriesWithPrefix("client.\uFFFF").size());
+
+        // aliases sharing a certificate take each other's place in the fingerprint lookup
+        byte[] shared = second.getCertificateEntry("server").getFingerprint();
+        assertEquals("server", second.getCertificateEntryByFingerprint(shared).getName());
+        second.remove("server");
+        assertEquals("client.\uFFFF", second.getCertificateEntryByFingerprint(shared).getName());
+        second.remove("client.\uFFFF");
+        assertNull(second.getCertificateEntryByFingerprint(shared));
+
+        second.close();
+
+    }
+
+    @Test
+    public void removeTest() throws IOException, GeneralSecurityException {
+
+        AliasStore first = new AliasStore(file, PASSWORD);
+        first.add(new CertificateEntry("test1", firstCert));
+        first.add(new CertificateEntry("test2", secondCert));
+        first.add(new CertificateEntry("test3", thirdCert));
+        first.remove("test2");
+        assertFalse(first.hasEntry("test2"));
+        assertNull(first.getCertificateEntryByFingerprint(new CertificateEntry("test2", secondCert).getFingerprint()));
+        List<CertificateEntry> expected = first.getEntries();
+        first.close();
+
+        AliasStore second = new AliasStore(file, PASSWORD);
+        assertEquals(expected, second.getEntries());
+        assertEquals(thirdCert, second.getCertificate("test3"));
+        second.close();
+
+    }
+
+    @Test
+    public void directoryTest() throws IOException, GeneralSecurityException {
+
+        StoreOptions options = new StoreOptions().setDirectory(true);
+        AliasStore first = new AliasStore(file, PASSWORD, options);
+        first.add(new CertificateEntry("test1", firstCert));
+        first.add(new CertificateEntry("test2", secondCert));
+        first.add(new CertificateEntry("test3", thirdCert));
+        byte[] fingerprint = first.getCertificateEntry("test2").getFingerprint();
+        first.close();
+
+        // names and fingerprints come from the directory, certificates only when asked for
+        AliasStore second = new AliasStore(file, PASSWORD, options);
+        CertificateEntry entry = second.getCertificateEntryByFingerprint(fingerprint);
+        assertEquals("test2", entry.getName());
+        assertFalse(entry.isDecoded());
+        assertEquals(secondCert, entry.getCertificate());
+        second.remove("test1");
+        second.close();
+
+        AliasStore third = new AliasStore(file, PASSWORD, options);
+        assertFalse(third.hasEntry("test1"));
+        assertEquals(thirdCert, third.getCertificate("test3"));
+        third.close();
+
+    }
+
+    @Test
+    public void streamTest() throws IOException, GeneralSecurityException {
+
+        AliasStore store = new AliasStore(file, PASSWORD);
+        store.add(new CertificateEntry("test1", firstCert));
+        store.add(new CertificateEntry("test2", secondCert));
+        store.add(new CertificateEntry("test3", thirdCert));
+        store.remove("test2");
+        store.close();
+
+        // read straight from the file, without opening the store
+        try (Stream<CertificateEntry> entries = AliasStore.stream(file, PASSWORD)) {
+            List<String> names = entries.map(CertificateEntry::getName).toList();
+            assertEquals(List.of("test1", "test3"), names);
+        }
+
+    }
+
+    @Test
+    public void exportTest() throws IOException, GeneralSecurityException {
+
+        CertificateEntry[] exported = {
+            new CertificateEntry("test1", firstCert),
+            new CertificateEntry("test2", secondCert)
+        };
+
+        // written like the File constructor would, key derivation parameters included
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AliasStore(out, exported, PASSWORD, new StoreOptions().setKdf(KdfParams.argon2id(1, 8192, 1)));
+        Files.write(file.toPath(), out.toByteArray());
+
+        AliasStore store = new AliasStore(file, PASSWORD);
+        assertEquals(List.of(exported), List.copyOf(store.getEntries()));
+        assertEquals(secondCert, store.getCertificate("test2"));
+        store.close();
+
+    }
+
+    @Test
+    public void eventsTest() throws IOException, GeneralSecurityException, InterruptedException, ExecutionException {
+
+        AliasStore store = new AliasStore(file, PASSWORD);
+        List<StoreEvent<CertificateEntry>> events = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> done = store.events().consume(events::addAll);
+
+        store.add(new CertificateEntry("test1", firstCert));
+        store.add(new CertificateEntry("test2", secondCert));
+        // a removal directly followed by an addition of the same name may arrive as one replacement
+        store.remove("test1");
+        store.add(new CertificateEntry("test1", thirdCert));
+        store.close();
+        done.get();
+
+        assertEquals(4, store.events().sequence());
+        long last = 0;
+        for (StoreEvent<CertificateEntry> event : events) {
+            assertTrue(event.sequence() > last);
+            last = event.sequence();
+        }
+        assertEquals(4, last);
+        StoreEvent<CertificateEntry> first = events.get(0);
+        assertEquals(StoreEvent.Kind.ADD, first.kind());
+        assertEquals("test1", first.entry().getName());
+        StoreEvent<CertificateEntry> replaced = events.get(events.size() - 1);
+        assertEquals(thirdCert, replaced.entry().getCertificate());
+        if (replaced.kind() == StoreEvent.Kind.REPLACE) assertEquals(firstCert, replaced.previous().getCertificate());
+        else assertEquals(StoreEvent.Kind.ADD, replaced.kind());
+
+    }
+
     @Before
     public void setup() throws InvalidAlgorithmParameterException, NoSuchAlgorithmException, IOException, CertificateException, OperatorCreationException {
         
-        file = new File("testaliasstore.lks");
-        file.createNewFile();
+        file = new File(folder.getRoot(), "testaliasstore.lks");
         
         KeyPairGenerator aGen = KeyPairGenerator.getInstance("EdDSA");
         aGen.initialize(new ECGenParameterSpec("Ed448"));
@@ -126,9 +302,4 @@ public class AliasStoreTest {
 
     }
 
-    @After
-    public void teardown() {
-        file.delete();
-    }
-    
 }
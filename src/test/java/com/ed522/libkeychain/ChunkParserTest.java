@@ -0,0 +1,187 @@
+package com.ed522.libkeychain;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import com.ed522.libkeychain.stores.ChunkParser;
+import com.ed522.libkeychain.stores.CryptoPool;
+import com.ed522.libkeychain.util.Constants;
+import com.ed522.libkeychain.util.Logger;
+import com.ed522.libkeychain.util.Logger.Level;
+import com.ed522.libkeychain.util.Logger.LoggerOutputStream;
+
+public class ChunkParserTest {
+
+	private static final int ROUNDS = 2000;
+	private static final int CHUNK_SIZE = 512;
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+	private static ChunkParser newParser() {
+		byte[] key = new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES];
+		new SecureRandom().nextBytes(key);
+		return new ChunkParser(new SecretKeySpec(key, Constants.SYMMETRIC_CIPHER));
+	}
+
+	@Test
+	public void testRoundTrip() throws GeneralSecurityException, IOException {
+
+		ChunkParser parser = newParser();
+		byte[] data = new byte[CHUNK_SIZE];
+		new SecureRandom().nextBytes(data);
+
+		byte[] chunk = parser.newChunk(data);
+		assertArrayEquals(data, parser.decryptChunk(chunk));
+		// same key and nonce twice in a row on one pooled cipher
+		assertArrayEquals(data, parser.decryptChunk(chunk));
+
+		byte[] updated = parser.updateChunk(chunk, data);
+		assertArrayEquals(data, parser.decryptChunk(updated));
+
+	}
+
+	@Test
+	public void testByteBufferRoundTrip() throws GeneralSecurityException, IOException {
+
+		ChunkParser parser = newParser();
+		byte[] data = new byte[CHUNK_SIZE];
+		new SecureRandom().nextBytes(data);
+
+		// one scratch buffer for several chunks back to back
+		ByteBuffer scratch = ByteBuffer.allocateDirect(4 * ChunkParser.chunkSize(CHUNK_SIZE));
+		parser.newChunk(ByteBuffer.wrap(data), scratch);
+		parser.newChunk(ByteBuffer.wrap(data), scratch);
+		scratch.flip();
+
+		ByteBuffer plain = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		for (int i = 0; i < 2; i++) {
+			assertEquals(CHUNK_SIZE, ChunkParser.dataLength(scratch));
+			plain.clear();
+			assertEquals(CHUNK_SIZE, parser.decryptChunk(scratch, plain));
+			byte[] result = new byte[CHUNK_SIZE];
+			plain.flip().get(result);
+			assertArrayEquals(data, result);
+		}
+		assertEquals(0, scratch.remaining());
+
+		// byte[] and ByteBuffer forms produce the same layout
+		byte[] chunk = parser.newChunk(data);
+		ByteBuffer updated = ByteBuffer.allocate(chunk.length);
+		parser.updateChunk(ByteBuffer.wrap(chunk), ByteBuffer.wrap(data), updated);
+		assertArrayEquals(data, parser.decryptChunk(updated.array()));
+
+	}
+
+	@Test
+	public void testPoolReusesInstances() throws GeneralSecurityException {
+
+		SecretKeySpec key = new SecretKeySpec(new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES], Constants.SYMMETRIC_CIPHER);
+		Cipher first = CryptoPool.cipher(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[Constants.SYMMETRIC_IV_LENGTH]));
+		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
+		iv[0] = 1;
+		Cipher second = CryptoPool.cipher(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		assertSame(first, second);
+		assertSame(CryptoPool.random(), CryptoPool.random());
+
+	}
+
+	/*
+	 * Allocation is not near zero per chunk: every chunk derives its own key and inits the cipher,
+	 * and SunJCE allocates about 0.9 KB of its own state per init. Measured with 512 B chunks:
+	 * pooled cipher setup about 0.9 KB/op against 2.5 KB for a fresh instance, newChunk 4.6 KB,
+	 * decryptChunk 3.9 KB, and both through reused ByteBuffers 7.2 KB, the output arrays saved.
+	 * What this checks is that pooling and the ByteBuffer path keep what they save.
+	 */
+	@Test
+	public void testAllocationPerChunk() throws GeneralSecurityException, IOException {
+
+		PrintStream logger = new PrintStream(new LoggerOutputStream(new Logger(), "ChunkParserTest", Level.INFO));
+
+		SecretKeySpec key = new SecretKeySpec(new byte[Constants.SYMMETRIC_KEY_LENGTH_BYTES], Constants.SYMMETRIC_CIPHER);
+		byte[] iv = new byte[Constants.SYMMETRIC_IV_LENGTH];
+
+		// warm up both paths
+		for (int i = 0; i < ROUNDS; i++) {
+			iv[0] = (byte) i;
+			iv[1] = (byte) (i >> 8);
+			Cipher.getInstance(Constants.SYMMETRIC_CIPHER).init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+			CryptoPool.cipher(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		}
+
+		long start = allocatedBytes();
+		for (int i = 0; i < ROUNDS; i++) {
+			iv[0] = (byte) i;
+			iv[1] = (byte) (i >> 8);
+			Cipher.getInstance(Constants.SYMMETRIC_CIPHER).init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		}
+		long fresh = (allocatedBytes() - start) / ROUNDS;
+
+		start = allocatedBytes();
+		for (int i = 0; i < ROUNDS; i++) {
+			iv[0] = (byte) i;
+			iv[1] = (byte) (i >> 8);
+			CryptoPool.cipher(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+		}
+		long pooled = (allocatedBytes() - start) / ROUNDS;
+
+		ChunkParser parser = newParser();
+		byte[] data = new byte[CHUNK_SIZE];
+		byte[][] chunks = new byte[ROUNDS][];
+		for (int i = 0; i < ROUNDS; i++) parser.decryptChunk(parser.newChunk(data));
+
+		start = allocatedBytes();
+		for (int i = 0; i < ROUNDS; i++) chunks[i] = parser.newChunk(data);
+		long perEncrypt = (allocatedBytes() - start) / ROUNDS;
+
+		start = allocatedBytes();
+		for (int i = 0; i < ROUNDS; i++) parser.decryptChunk(chunks[i]);
+		long perDecrypt = (allocatedBytes() - start) / ROUNDS;
+
+		ByteBuffer in = ByteBuffer.allocate(CHUNK_SIZE);
+		ByteBuffer scratch = ByteBuffer.allocate(ChunkParser.chunkSize(CHUNK_SIZE));
+		ByteBuffer out = ByteBuffer.allocate(CHUNK_SIZE);
+		start = allocatedBytes();
+		for (int i = 0; i < ROUNDS; i++) {
+			in.clear();
+			scratch.clear();
+			parser.newChunk(in, scratch);
+			scratch.flip();
+			out.clear();
+			parser.decryptChunk(scratch, out);
+		}
+		long perBufferRoundTrip = (allocatedBytes() - start) / ROUNDS;
+
+		logger.println("Cipher setup, fresh instance: " + fresh + " B/op");
+		logger.println("Cipher setup, pooled instance: " + pooled + " B/op");
+		logger.println("newChunk(" + CHUNK_SIZE + " B): " + perEncrypt + " B/chunk");
+		logger.println("decryptChunk(" + CHUNK_SIZE + " B): " + perDecrypt + " B/chunk");
+		logger.println("newChunk + decryptChunk, reused heap buffers (" + CHUNK_SIZE + " B): " + perBufferRoundTrip + " B/chunk");
+		logger.close();
+
+		// the provider still allocates its own per-init state, so only the lookup is saved
+		assertTrue("Pooled cipher setup should allocate under half of a fresh instance: " + pooled + " / " + fresh, 2 * pooled < fresh);
+		// reused buffers save at least the output arrays of both directions
+		assertTrue(
+			"Reused buffers should save the output arrays: " + perBufferRoundTrip + " / " + (perEncrypt + perDecrypt),
+			perEncrypt + perDecrypt - perBufferRoundTrip >= 2L * CHUNK_SIZE
+		);
+
+	}
+
+}
@@ -1,13 +1,23 @@
 package com.ed522.libkeychain;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
@@ -20,10 +30,16 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -33,12 +49,23 @@ import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.ed522.libkeychain.stores.ChunkParser;
+import com.ed522.libkeychain.stores.ChunkStore;
+import com.ed522.libkeychain.stores.Durability;
+import com.ed522.libkeychain.stores.KdfParams;
+import com.ed522.libkeychain.stores.KeyDerivation;
+import com.ed522.libkeychain.stores.Snapshot;
+import com.ed522.libkeychain.stores.StoreOptions;
+import com.ed522.libkeychain.stores.UnlockCache;
+import com.ed522.libkeychain.stores.keystore.EntryType;
 import com.ed522.libkeychain.stores.keystore.Keystore;
 import com.ed522.libkeychain.stores.keystore.KeystoreEntry;
+import com.ed522.libkeychain.stores.keystore.KeystoreWriter;
 import com.ed522.libkeychain.util.Logger;
 import com.ed522.libkeychain.util.Constants;
 import com.ed522.libkeychain.util.Logger.Level;
@@ -63,6 +90,26 @@ public class KeystoreTest {
     private static final String PASSWORD = "testpasswd";
     private File file;
 
+    // every store file, and the journal, log and lock next to it, is gone after each test
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File storeFile(String name) {
+        return new File(folder.getRoot(), name);
+    }
+    // opens the file again and checks it holds exactly the expected entries
+    private void assertReopens(File storeFile, StoreOptions options, List<KeystoreEntry> expected) throws IOException, GeneralSecurityException {
+        Keystore store = new Keystore(storeFile, PASSWORD, options);
+        try {
+            assertEquals(expected, store.getEntries());
+        } finally {
+            store.close();
+        }
+    }
+    private void assertReopens(File storeFile, List<KeystoreEntry> expected) throws IOException, GeneralSecurityException {
+        assertReopens(storeFile, new StoreOptions(), expected);
+    }
+
     private static final Certificate generateCertificate(String cn, PublicKey pk, PrivateKey signer) throws CertificateException, OperatorCreationException, IOException {
 
         return CertificateFactory.getInstance("X.509").generateCertificate(
@@ -125,12 +172,571 @@ public class KeystoreTest {
 
     }
 
+    @Test
+    public void loadModesTest() throws IOException, GeneralSecurityException, OperatorCreationException {
+
+        File modesFile = storeFile("testkeystore-modes.lks");
+
+        Keystore first = new Keystore(modesFile, PASSWORD);
+        first.add(new KeystoreEntry("test1", firstSecret));
+        first.add(new KeystoreEntry("test1", firstPair.getPrivate()));
+        first.add(new KeystoreEntry("test1", generateCertificate("test1", firstPair.getPublic(), firstPair.getPrivate())));
+        first.add(new KeystoreEntry("test2", secondSecret));
+        List<KeystoreEntry> expected = first.getEntries();
+        first.close();
+
+        StoreOptions[] modes = {
+            new StoreOptions().setMappedRead(true),
+            new StoreOptions().setParallelLoad(true),
+            new StoreOptions().setMappedRead(true).setParallelLoad(true)
+        };
+        for (StoreOptions options : modes) {
+            assertReopens(modesFile, options, expected);
+        }
+
+    }
+
+    @Test
+    public void removeTest() throws IOException, GeneralSecurityException {
+
+        File removeFile = storeFile("testkeystore-remove.lks");
+
+        Keystore first = new Keystore(removeFile, PASSWORD);
+        long emptyLength = removeFile.length();
+        first.add(new KeystoreEntry("test1", firstSecret));
+        first.add(new KeystoreEntry("test1", firstPair.getPrivate()));
+        first.add(new KeystoreEntry("test2", secondSecret));
+
+        // only the entry of the given type goes
+        first.remove("test1", EntryType.SECRET);
+        assertFalse(first.hasSecret("test1"));
+        assertTrue(first.hasPrivate("test1"));
+        List<KeystoreEntry> expected = first.getEntries();
+        first.close();
+
+        Keystore second = new Keystore(removeFile, PASSWORD);
+        assertEquals(expected, second.getEntries());
+        long fullLength = removeFile.length();
+        second.remove("test1", EntryType.PRIVATE);
+        second.remove("test2", EntryType.SECRET);
+
+        // removed entries are only marked dead until compaction
+        assertEquals(fullLength, removeFile.length());
+        second.compact();
+        assertEquals(emptyLength, removeFile.length());
+        second.close();
+
+        assertReopens(removeFile, List.of());
+
+    }
+
+    @Test
+    public void indexTest() throws IOException, GeneralSecurityException {
+
+        File indexFile = storeFile("testkeystore-index.lks");
+
+        Keystore first = new Keystore(indexFile, PASSWORD);
+        assertFalse(first.hasSecret("dup"));
+        first.add(new KeystoreEntry("dup", firstSecret));
+        first.add(new KeystoreEntry("dup", secondSecret));
+        first.add(new KeystoreEntry("dup", firstPair.getPrivate()));
+
+        // the first entry of a name and type wins, and has* is true only when there is one
+        assertEquals(firstSecret, first.getSecret("dup"));
+        assertTrue(first.hasSecret("dup"));
+        assertTrue(first.hasPrivate("dup"));
+        assertFalse(first.hasCertificate("dup"));
+
+        // removing goes through every duplicate, lookups and entries agree after
+        first.remove("dup", EntryType.SECRET);
+        assertFalse(first.hasSecret("dup"));
+        assertNull(first.getSecret("dup"));
+        assertEquals(1, first.getEntries().size());
+        assertTrue(first.hasPrivate("dup"));
+
+        first.add(new KeystoreEntry("dup", secondSecret));
+        assertEquals(secondSecret, first.getSecret("dup"));
+        first.close();
+
+        Keystore second = new Keystore(indexFile, PASSWORD);
+        assertEquals(secondSecret, second.getSecret("dup"));
+        assertEquals(firstPair.getPrivate(), second.getPrivate("dup"));
+        second.close();
+
+    }
+
+    @Test
+    public void durabilityTest() throws IOException, GeneralSecurityException {
+
+        File durabilityFile = storeFile("testkeystore-durability.lks");
+
+        for (Durability durability : Durability.values()) {
+
+            durabilityFile.delete();
+            Keystore first = new Keystore(durabilityFile, PASSWORD, new StoreOptions().setDurability(durability));
+            first.add(new KeystoreEntry("test1", firstSecret));
+            first.add(new KeystoreEntry("test1", firstPair.getPrivate()));
+            first.add(new KeystoreEntry("test2", secondSecret));
+            first.remove("test2", EntryType.SECRET);
+            first.sync();
+            List<KeystoreEntry> expected = first.getEntries();
+            first.close();
+
+            assertReopens(durabilityFile, expected);
+
+        }
+
+    }
+
+    @Test
+    public void addAllTest() throws IOException, GeneralSecurityException {
+
+        File bulkFile = storeFile("testkeystore-bulk.lks");
+
+        Keystore first = new Keystore(bulkFile, PASSWORD);
+        first.add(new KeystoreEntry("test1", firstSecret));
+        first.addAll(List.of(
+            new KeystoreEntry("test2", secondSecret),
+            new KeystoreEntry("test3", thirdPair.getPrivate()),
+            new KeystoreEntry("test4", fourthSecret)
+        ));
+        assertTrue(first.hasPrivate("test3"));
+        List<KeystoreEntry> expected = first.getEntries();
+        first.close();
+
+        assertReopens(bulkFile, expected);
+
+    }
+
+    @Test
+    public void batchTest() throws IOException, GeneralSecurityException {
+
+        File batchFile = storeFile("testkeystore-batch.lks");
+
+        Keystore first = new Keystore(batchFile, PASSWORD);
+        first.add(new KeystoreEntry("test1", firstSecret));
+        long length = batchFile.length();
+
+        first.beginBatch();
+        first.add(new KeystoreEntry("test2", secondSecret));
+        first.add(new KeystoreEntry("test3", thirdPair.getPrivate()));
+        first.remove("test1", EntryType.SECRET);
+        // visible right away, but not written yet
+        assertTrue(first.hasSecret("test2"));
+        assertEquals(length, batchFile.length());
+        first.commit();
+
+        List<KeystoreEntry> expected = first.getEntries();
+        first.close();
+
+        Keystore second = new Keystore(batchFile, PASSWORD);
+        assertEquals(expected, second.getEntries());
+        assertFalse(second.hasSecret("test1"));
+        second.close();
+
+    }
+
+    @Test
+    public void journalRecoveryTest() throws IOException, GeneralSecurityException {
+
+        File journalFile = storeFile("testkeystore-journal.lks");
+        Path journalPath = journalFile.toPath().resolveSibling(journalFile.getName() + ".journal");
+        KeystoreEntry kept = new KeystoreEntry("test1", firstSecret);
+        KeystoreEntry batched = new KeystoreEntry("test2", secondSecret);
+
+        Keystore first = new Keystore(journalFile, PASSWORD);
+        first.add(kept);
+        first.close();
+
+        // the journal record of a batch adding one entry, as commit() writes it, see Journal
+        byte[] store = Files.readAllBytes(journalFile.toPath());
+        int header = 4 + ChunkStore.SALT_LENGTH;
+        ChunkParser parser = new ChunkParser(KeyDerivation.derive(PASSWORD, Arrays.copyOfRange(store, 4, header)));
+        byte[] chunk0 = Arrays.copyOfRange(store, header, header + ChunkParser.chunkSize(24));
+        byte[] newChunk0 = parser.updateChunk(chunk0, ChunkStore.chunk0(2));
+        byte[] entry = parser.newChunk(batched.encode());
+        ByteBuffer record = ByteBuffer.allocate(chunk0.length + 4 + 2 * (8 + 4) + newChunk0.length + entry.length);
+        record.put(chunk0).putInt(2);
+        record.putLong(header).putInt(newChunk0.length).put(newChunk0);
+        record.putLong(store.length).putInt(entry.length).put(entry);
+        byte[] journal = parser.newChunk(record.array());
+
+        // torn while being written, before the commit point: none of the batch
+        Files.write(journalPath, Arrays.copyOf(journal, journal.length / 2));
+        assertReopens(journalFile, List.of(kept));
+
+        // committed, but cut short while being applied: all of it
+        Files.write(journalPath, journal);
+        Files.write(journalFile.toPath(), entry, StandardOpenOption.APPEND);
+        assertReopens(journalFile, List.of(kept, batched));
+        assertEquals(0, Files.size(journalPath));
+        assertReopens(journalFile, List.of(kept, batched));
+
+    }
+
+    @Test
+    public void writeAheadLogTest() throws IOException, GeneralSecurityException {
+
+        File walFile = storeFile("testkeystore-wal.lks");
+        StoreOptions options = new StoreOptions().setWriteAheadLog(true);
+
+        Keystore first = new Keystore(walFile, PASSWORD, options);
+        long length = walFile.length();
+        first.add(new KeystoreEntry("test1", firstSecret));
+        first.add(new KeystoreEntry("test2", secondSecret));
+        first.remove("test1", EntryType.SECRET);
+        // only the log has been written to
+        assertEquals(length, walFile.length());
+        List<KeystoreEntry> expected = first.getEntries();
+        first.close();
+
+        Keystore second = new Keystore(walFile, PASSWORD, options);
+        assertEquals(expected, second.getEntries());
+        second.compact();
+        assertNotEquals(length, walFile.length());
+        second.close();
+
+        // opened without the log, the store still sees everything
+        assertReopens(walFile, expected);
+
+    }
+
+    @Test
+    public void tornLogTest() throws IOException, GeneralSecurityException {
+
+        File tornFile = storeFile("testkeystore-torn.lks");
+        Path log = tornFile.toPath().resolveSibling(tornFile.getName() + ".wal");
+        StoreOptions options = new StoreOptions().setWriteAheadLog(true);
+        KeystoreEntry kept = new KeystoreEntry("test1", firstSecret);
+
+        Keystore first = new Keystore(tornFile, PASSWORD, options);
+        first.add(kept);
+        long logged = Files.size(log);
+        // one record for the whole batch
+        first.beginBatch();
+        first.add(new KeystoreEntry("test2", secondSecret));
+        first.add(new KeystoreEntry("test3", thirdPair.getPrivate()));
+        first.remove("test1", EntryType.SECRET);
+        first.commit();
+        List<KeystoreEntry> batched = first.getEntries();
+        first.close();
+
+        // the batch record cut off partway, as a crash during the append leaves it
+        byte[] full = Files.readAllBytes(log);
+        Files.write(log, Arrays.copyOf(full, (int) (logged + (full.length - logged) / 2)));
+        assertReopens(tornFile, options, List.of(kept));
+        // the torn tail is gone, not replayed later
+        assertEquals(logged, Files.size(log));
+
+        // the whole record: all of the batch
+        Files.write(log, full);
+        assertReopens(tornFile, options, batched);
+
+    }
+
+    @Test
+    public void lazyDecodingTest() throws IOException, GeneralSecurityException {
+
+        File lazyFile = storeFile("testkeystore-lazy.lks");
+
+        Keystore first = new Keystore(lazyFile, PASSWORD);
+        first.add(new KeystoreEntry("test1", firstPair.getPrivate()));
+        first.add(new KeystoreEntry("test2", secondSecret));
+        first.add(new KeystoreEntry("test3", thirdPair.getPrivate()));
+        List<KeystoreEntry> expected = first.getEntries();
+        first.close();
+
+        Keystore second = new Keystore(lazyFile, PASSWORD, new StoreOptions().setLazyDecoding(true));
+        List<KeystoreEntry> lazy = second.getEntries();
+        assertFalse(lazy.get(0).isDecoded());
+        assertEquals("test1", lazy.get(0).getName());
+        assertEquals(expected.get(0), lazy.get(0));
+        assertTrue(lazy.get(0).isDecoded());
+        assertFalse(lazy.get(2).isDecoded());
+        assertEquals(expected, second.getEntries());
+
+        // still readable after leaving the store
+        KeystoreEntry removed = lazy.get(1);
+        second.remove("test2", EntryType.SECRET);
+        second.compact();
+        assertEquals(secondSecret, removed.getSecret());
+        assertTrue(second.hasPrivate("test3"));
+        assertEquals(expected.get(2), second.getEntries().get(1));
+        second.close();
+
+    }
+
+    @Test
+    public void directoryGrowthTest() throws IOException, GeneralSecurityException {
+
+        File directoryFile = storeFile("testkeystore-directory.lks");
+        StoreOptions options = new StoreOptions().setDirectory(true);
+
+        List<KeystoreEntry> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            KeystoreEntry entry = new KeystoreEntry("test" + i, i % 2 == 0 ? firstSecret : secondSecret);
+            Keystore store = new Keystore(directoryFile, PASSWORD, options);
+            store.add(entry);
+            store.close();
+            expected.add(entry);
+        }
+
+        // every session replaced the directory instead of leaving the old one behind
+        long length = directoryFile.length();
+        Keystore store = new Keystore(directoryFile, PASSWORD, options);
+        store.compact();
+        store.close();
+        assertEquals(length, directoryFile.length());
+        assertReopens(directoryFile, options, expected);
+        assertReopens(directoryFile, expected);
+
+    }
+
+    @Test
+    public void uncachedLookupTest()throws IOException, GeneralSecurityException {
+
+        File uncachedFile = storeFile("testkeystore-uncached.lks");
+
+        Keystore first = new Keystore(uncachedFile, PASSWORD);
+        first.add(new KeystoreEntry("test1", firstSecret));
+        first.add(new KeystoreEntry("test2", secondSecret));
+        first.add(new KeystoreEntry("test3", thirdPair.getPrivate()));
+        first.add(new KeystoreEntry("test4", fourthSecret));
+        first.close();
+
+        // read back from the file on every access, wherever the chunk has gone since
+        Keystore second = new Keystore(uncachedFile, PASSWORD, new StoreOptions().setLazyDecoding(true).setCacheDecoded(false));
+        second.remove("test1", EntryType.SECRET);
+        second.remove("test2", EntryType.SECRET);
+        assertEquals(thirdPair.getPrivate(), second.getPrivate("test3"));
+        assertEquals(fourthSecret, second.getSecret("test4"));
+        second.compact();
+        assertEquals(thirdPair.getPrivate(), second.getPrivate("test3"));
+        assertEquals(fourthSecret, second.getSecret("test4"));
+        second.add(new KeystoreEntry("test5", secondSecret));
+        second.remove("test3", EntryType.PRIVATE);
+        assertEquals(fourthSecret, second.getSecret("test4"));
+        second.close();
+
+    }
+
+    @Test
+    public void keyDerivationTest() throws IOException, GeneralSecurityException {
+
+        File kdfFile = storeFile("testkeystore-kdf.lks");
+
+        new Keystore(kdfFile, PASSWORD).close();
+        new Keystore(kdfFile, PASSWORD).close();
+        // once for creating, once for opening
+        assertEquals(2, KeyDerivation.getCount());
+        assertTrue(KeyDerivation.getTotalNanos() >= KeyDerivation.getLastNanos());
+
+    }
+
+    @Test
+    public void streamingWriterTest() throws IOException, GeneralSecurityException {
+
+        File exportFile = storeFile("testkeystore-export.lks");
+
+        List<KeystoreEntry> exported = List.of(
+            new KeystoreEntry("first", firstSecret),
+            new KeystoreEntry("second", secondSecret),
+            new KeystoreEntry("fourth", fourthSecret)
+        );
+
+        // without a count, the first open counts the entries
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (KeystoreWriter writer = new KeystoreWriter(out, PASSWORD)) {
+            assertEquals(3, writer.writeAll(exported.stream()));
+        }
+        Files.write(exportFile.toPath(), out.toByteArray());
+
+        Keystore store = new Keystore(exportFile, PASSWORD);
+        assertEquals(exported, List.copyOf(store.getEntries()));
+        store.close();
+        store = new Keystore(exportFile, PASSWORD);
+        assertEquals(3, store.getEntries().size());
+        store.close();
+
+    }
+
+    @Test
+    public void concurrentLookupTest() throws IOException, GeneralSecurityException, InterruptedException {
+
+        File concurrentFile = storeFile("testkeystore-concurrent.lks");
+
+        Keystore store = new Keystore(concurrentFile, PASSWORD, new StoreOptions().setDurability(Durability.MANUAL));
+        store.add(new KeystoreEntry("first", firstSecret));
+
+        // lookups from several threads while one thread writes
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        assertEquals(firstSecret, store.getSecret("first"));
+                        store.hasSecret("second");
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 0; i < 200; i++) {
+            store.add(new KeystoreEntry("second", secondSecret));
+            store.remove("second", EntryType.SECRET);
+        }
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+
+        assertNull(failure.get());
+        assertEquals(1, store.getEntries().size());
+        store.close();
+
+    }
+
+    @Test
+    public void snapshotTest() throws IOException, GeneralSecurityException {
+
+        File snapshotFile = storeFile("testkeystore-snapshot.lks");
+
+        Keystore store = new Keystore(snapshotFile, PASSWORD, new StoreOptions().setDurability(Durability.MANUAL));
+        store.add(new KeystoreEntry("first", firstSecret));
+        Snapshot<KeystoreEntry> before = store.snapshot();
+        // nothing changed, nothing copied
+        assertSame(before, store.snapshot());
+
+        store.add(new KeystoreEntry("second", secondSecret));
+        Snapshot<KeystoreEntry> added = store.snapshot();
+        store.remove("first", EntryType.SECRET);
+        Snapshot<KeystoreEntry> removed = store.snapshot();
+
+        // older snapshots stay as they were
+        assertEquals(1, before.size());
+        assertEquals("first", before.get(0).getName());
+        assertEquals(2, added.size());
+        assertEquals(1, removed.size());
+        assertEquals("second", removed.get(0).getName());
+        assertTrue(before.version() < added.version() && added.version() < removed.version());
+
+        // appending to an old snapshot can't overwrite what a newer one holds
+        Snapshot<KeystoreEntry> branch = before.with(new KeystoreEntry("third", fourthSecret));
+        assertEquals("second", added.get(1).getName());
+        assertEquals("third", branch.get(1).getName());
+
+        assertThrows(UnsupportedOperationException.class, () -> store.getEntries().clear());
+
+        store.close();
+
+    }
+
+    @Test
+    public void asyncTest() throws IOException, GeneralSecurityException, InterruptedException, ExecutionException {
+
+        File asyncFile = storeFile("testkeystore-async.lks");
+
+        Keystore store = Keystore.openAsync(asyncFile, PASSWORD).get();
+        store.addAsync(new KeystoreEntry("first", firstSecret))
+            .thenCompose(ignored -> store.addAsync(new KeystoreEntry("second", secondSecret)))
+            .get();
+        assertEquals(firstSecret, store.getAsync("first", EntryType.SECRET).get().getSecret());
+        store.removeAsync("first", EntryType.SECRET).get();
+        assertNull(store.getAsync("first", EntryType.SECRET).get());
+        store.close();
+
+        // failures complete the future instead of being thrown
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> Keystore.openAsync(asyncFile, PASSWORD + "x").get());
+        assertTrue(failed.getCause() instanceof GeneralSecurityException || failed.getCause() instanceof IOException);
+
+    }
+
+    @Test
+    public void sharedTest() throws IOException, GeneralSecurityException {
+
+        File sharedFile = storeFile("testkeystore-shared.lks");
+
+        StoreOptions options = new StoreOptions().setShared(true);
+        Keystore first = new Keystore(sharedFile, PASSWORD, options);
+        Keystore second = new Keystore(sharedFile, PASSWORD, options);
+        assertFalse(second.refresh());
+
+        first.add(new KeystoreEntry("first", firstSecret));
+        assertTrue(second.refresh());
+        assertEquals(firstSecret, second.getSecret("first"));
+
+        // writes catch up by themselves
+        second.add(new KeystoreEntry("second", secondSecret));
+        first.remove("second", EntryType.SECRET);
+        assertTrue(second.refresh());
+        assertFalse(second.hasSecret("second"));
+
+        // entries keep up with a compaction done elsewhere
+        first.compact();
+        assertFalse(second.refresh());
+        second.remove("first", EntryType.SECRET);
+        assertTrue(first.refresh());
+        assertFalse(first.hasSecret("first"));
+        assertEquals(first.getEntries(), second.getEntries());
+
+        first.close();
+        second.close();
+
+    }
+
+    @Test
+    public void kdfParamsTest() throws IOException, GeneralSecurityException {
+
+        File kdfFile = storeFile("testkeystore-argon2.lks");
+
+        Keystore first = new Keystore(kdfFile, PASSWORD, new StoreOptions().setKdf(KdfParams.argon2id(1, 8192, 1)));
+        first.add(new KeystoreEntry("first", firstSecret));
+        first.close();
+
+        // the parameters come from the header
+        Keystore second = new Keystore(kdfFile, PASSWORD);
+        assertTrue(second.hasSecret("first"));
+        second.close();
+
+        KdfParams calibrated = KeyDerivation.calibrate(KdfParams.Algorithm.PBKDF2_HMAC_SHA256, Duration.ofMillis(50));
+        assertEquals(KdfParams.Algorithm.PBKDF2_HMAC_SHA256, calibrated.algorithm());
+        assertTrue(calibrated.iterations() >= 1000);
+
+    }
+
+    @Test
+    public void unlockCacheTest() throws IOException, GeneralSecurityException {
+
+        File cacheFile = storeFile("testkeystore-cache.lks");
+        StoreOptions options = new StoreOptions().setUnlockCacheTtl(60_000);
+
+        new Keystore(cacheFile, PASSWORD, options).close();
+        new Keystore(cacheFile, PASSWORD, options).close();
+        new Keystore(cacheFile, PASSWORD, options).close();
+        // only when creating
+        assertEquals(1, KeyDerivation.getCount());
+
+        // a wrong password derives and fails without touching the cached key
+        assertThrows(GeneralSecurityException.class, () -> new Keystore(cacheFile, PASSWORD + "x", options).close());
+        new Keystore(cacheFile, PASSWORD, options).close();
+        assertEquals(2, KeyDerivation.getCount());
+
+        UnlockCache.clear();
+        assertEquals(0, UnlockCache.size());
+
+    }
+
     @Before
     public void setup() throws InvalidAlgorithmParameterException, NoSuchAlgorithmException, IOException {
         
-        file = new File("testkeystore.lks");
-        file.createNewFile();
-        
+        file = storeFile("testkeystore.lks");
+        // derivation counts and cached keys are global, each test starts from none
+        KeyDerivation.resetMetrics();
+        UnlockCache.clear();
+
         KeyPairGenerator aGen = KeyPairGenerator.getInstance(Constants.ASYMMETRIC_CIPHER);
         aGen.initialize(new ECGenParameterSpec(Constants.ASYMMETRIC_CURVE_NAME));
         this.firstPair = aGen.genKeyPair();
@@ -145,9 +751,4 @@ public class KeystoreTest {
 
     }
 
-    @After
-    public void teardown() {
-        // file.delete();
-    }
-    
 }